@@ -0,0 +1,289 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import static tabou.log.TabouLog.Log;
+
+/**
+ * a request taken out of the servlet that received it, as with
+ * startAsync() of Servlet 3.1, which the javax.servlet API of this server
+ * predates; see {@link HttpServletRequestImpl#startAsync()}.
+ * when service() returns the worker goes back to the server while the
+ * connection waits, neither answered nor closed, until complete(),
+ * dispatch() or the timeout. these may be called from any thread; when
+ * called before service() returns they take effect as it returns.
+ */
+public class AsyncContext {
+    static public final long DEFAULT_TIMEOUT = 30000;
+    static private final int STARTED     = 0;  /* asynchronous */
+    static private final int DISPATCHING = 1;  /* dispatch() called */
+    static private final int DISPATCHED  = 2;  /* servlet running again, not asynchronous */
+    static private final int ENDING      = 3;  /* listeners told of a timeout or error */
+    static private final int COMPLETING  = 4;
+    static private final int DONE        = 5;
+    static private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+        @Override
+        public Thread newThread(Runnable runnable){
+            Thread thread = new Thread(runnable,"AsyncContext");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * what the server does for an asynchronous request.
+     */
+    interface Container {
+        /**
+         * run the servlet mapped to <code>path</code> (the request URI if
+         * null) on another thread.
+         */
+        void dispatch(String path);
+        /**
+         * send the rest of the response and release the connection.
+         */
+        void complete();
+        void execute(Runnable runnable);
+    }
+
+    private final HttpServletRequestImpl request;
+    private final HttpServletResponseImpl response;
+    private final Container container;
+    private final List<AsyncListener> listeners = new CopyOnWriteArrayList<AsyncListener>();
+    private long timeout = DEFAULT_TIMEOUT;
+    private int state = STARTED;
+    private boolean inService = true;
+    private String dispatchPath = null;
+    private ScheduledFuture<?> timeoutTask = null;
+
+    AsyncContext(HttpServletRequestImpl request,HttpServletResponseImpl response,Container container){
+        this.request = request;
+        this.response = response;
+        this.container = container;
+    }
+    public HttpServletRequest getRequest(){
+        return request;
+    }
+    public HttpServletResponse getResponse(){
+        return response;
+    }
+    public void addListener(AsyncListener listener){
+        listeners.add(listener);
+    }
+    /**
+     * milliseconds to wait after service() returns; 0 or less waits for ever.
+     */
+    public synchronized void setTimeout(long timeout){
+        this.timeout = timeout;
+    }
+    public synchronized long getTimeout(){
+        return timeout;
+    }
+    /**
+     * run <code>runnable</code> on a thread of the server.
+     */
+    public void start(Runnable runnable){
+        container.execute(runnable);
+    }
+    /**
+     * run the servlet of the request URI again.
+     */
+    public void dispatch(){
+        dispatch(null);
+    }
+    /**
+     * run the servlet mapped to <code>path</code>, with the same request
+     * and response. the request is no longer asynchronous unless that
+     * servlet calls startAsync() again.
+     */
+    public void dispatch(String path){
+        synchronized(this){
+            if(state != STARTED && state != ENDING){
+                throw new IllegalStateException("not asynchronous");
+            }
+            cancelTimeout();
+            state = DISPATCHING;
+            dispatchPath = path;
+            if(inService){
+                return;
+            }
+        }
+        container.dispatch(path);
+    }
+    /**
+     * send the response and let the connection carry the next request.
+     */
+    public void complete(){
+        synchronized(this){
+            if(state == COMPLETING || state == DONE){
+                return;
+            }
+            if(state != STARTED && state != ENDING){
+                throw new IllegalStateException("not asynchronous");
+            }
+            cancelTimeout();
+            state = COMPLETING;
+            if(inService){
+                return;
+            }
+        }
+        container.complete();
+    }
+    /**
+     * startAsync() in a servlet run by dispatch().
+     */
+    void restart(){
+        synchronized(this){
+            if(state != DISPATCHED){
+                throw new IllegalStateException("startAsync() already called");
+            }
+            state = STARTED;
+        }
+        /* as with Servlet 3.1, listeners have to add themselves again */
+        AsyncListener[] started = listeners.toArray(new AsyncListener[0]);
+        listeners.clear();
+        for(AsyncListener listener : started){
+            try{
+                listener.onStartAsync(this);
+            }catch(IOException e){
+                Log.warning(e.toString());
+            }
+        }
+    }
+    synchronized boolean isStarted(){
+        return state == STARTED || state == ENDING;
+    }
+    /**
+     * the server is about to run the servlet chosen by dispatch().
+     */
+    synchronized void enterService(){
+        inService = true;
+        state = DISPATCHED;
+    }
+    /**
+     * service() has returned: carry out complete() or dispatch() if either
+     * was called, or wait for them.
+     */
+    void serviceReturned(){
+        String path;
+        boolean dispatch;
+        synchronized(this){
+            inService = false;
+            switch(state){
+            case STARTED:
+                if(timeout > 0){
+                    timeoutTask = timer.schedule(new Runnable(){
+                        @Override
+                        public void run(){
+                            end(null);
+                        }
+                    },timeout,TimeUnit.MILLISECONDS);
+                }
+                return;
+            case DISPATCHING:
+                path = dispatchPath;
+                dispatch = true;
+                break;
+            default:
+                state = COMPLETING;
+                path = null;
+                dispatch = false;
+                break;
+            }
+        }
+        if(dispatch){
+            container.dispatch(path);
+        }else{
+            container.complete();
+        }
+    }
+    /**
+     * service() threw <code>t</code> after startAsync().
+     */
+    void serviceFailed(Throwable t){
+        boolean completing;
+        synchronized(this){
+            inService = false;
+            cancelTimeout();
+            completing = state == COMPLETING;
+            if(!completing){
+                state = STARTED;
+            }
+        }
+        if(completing){
+            container.complete();
+        }else{
+            end(t);
+        }
+    }
+    /**
+     * the response has been sent.
+     */
+    void completed(){
+        synchronized(this){
+            state = DONE;
+        }
+        for(AsyncListener listener : listeners){
+            try{
+                listener.onComplete(this);
+            }catch(IOException e){
+                Log.warning(e.toString());
+            }
+        }
+    }
+    /**
+     * tell the listeners of a timeout (<code>t</code> is null) or an error;
+     * a request none of them completes or dispatches ends with 500.
+     */
+    private void end(Throwable t){
+        synchronized(this){
+            if(state != STARTED || inService){
+                return;
+            }
+            state = ENDING;
+        }
+        for(AsyncListener listener : listeners){
+            try{
+                if(t == null){
+                    listener.onTimeout(this);
+                }else{
+                    listener.onError(this,t);
+                }
+            }catch(IOException e){
+                Log.warning(e.toString());
+            }
+        }
+        synchronized(this){
+            if(state != ENDING){
+                return;
+            }
+            state = COMPLETING;
+        }
+        Log.warning((t == null ? "async timeout: " : "async error: " + t + ": ") + request.getRequestURI());
+        if(!response.isCommitted()){
+            try{
+                response.reset();
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }catch(IOException | IllegalStateException e){
+                Log.warning(e.toString());
+            }
+        }
+        container.complete();
+    }
+    private void cancelTimeout(){
+        if(timeoutTask != null){
+            timeoutTask.cancel(false);
+            timeoutTask = null;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.io.IOException;
+import java.util.EventListener;
+
+/**
+ * told what becomes of an asynchronous request, see {@link AsyncContext}.
+ * the callbacks of the Servlet 3.1 listener, given the context itself
+ * instead of an event.
+ */
+public interface AsyncListener extends EventListener {
+    /**
+     * the response has been sent.
+     */
+    void onComplete(AsyncContext context) throws IOException;
+    /**
+     * the timeout passed; the listener may complete() or dispatch(),
+     * otherwise the request ends with 500.
+     */
+    void onTimeout(AsyncContext context) throws IOException;
+    void onError(AsyncContext context,Throwable t) throws IOException;
+    /**
+     * startAsync() was called again after a dispatch.
+     */
+    void onStartAsync(AsyncContext context) throws IOException;
+}
@@ -0,0 +1,181 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import javax.servlet.ServletInputStream;
+
+/**
+ * body of one request, read straight from the connection.
+ * the stream ends at Content-Length, or at the last chunk when it wraps a
+ * ChunkInputStream, so the servlet can never read into the next request.
+ * closing it does not close the connection.
+ */
+public class BodyInputStream extends ServletInputStream {
+    static private final int SKIP_BUFFER_SIZE = 2048;
+    private final InputStream in;
+    private long remaining;  /* -1: until in ends */
+
+    /**
+     * body of <code>length</code> bytes (Content-Length).
+     */
+    public BodyInputStream(InputStream in,long length){
+        this.in = in;
+        this.remaining = Math.max(length,0);
+    }
+    /**
+     * body ending where <code>in</code> ends (a ChunkInputStream).
+     */
+    public BodyInputStream(InputStream in){
+        this.in = in;
+        this.remaining = -1;
+    }
+    /**
+     * trailer headers of a chunked body, once it has been read to the end.
+     */
+    public Map<String,String> getTrailers(){
+        if(in instanceof ChunkInputStream){
+            return ((ChunkInputStream)in).getTrailers();
+        }
+        return Collections.emptyMap();
+    }
+    /**
+     * has the whole body been read?
+     */
+    public boolean isFinished(){
+        return remaining == 0;
+    }
+    /**
+     * can a byte be read without blocking? true at the end of the body.
+     */
+    public boolean isReady(){
+        try{
+            return isFinished() || available() > 0;
+        }catch(IOException e){
+            return true;  /* the next read reports it */
+        }
+    }
+    @Override
+    public int read() throws IOException{
+        if(remaining == 0){
+            return -1;
+        }
+        int c = in.read();
+        if(c < 0){
+            remaining = 0;
+            return -1;
+        }
+        if(remaining > 0){
+            remaining--;
+        }
+        return c;
+    }
+    @Override
+    public int read(byte[] b,int off,int len) throws IOException{
+        if(len == 0){
+            return 0;
+        }
+        if(remaining == 0){
+            return -1;
+        }
+        if(remaining > 0 && len > remaining){
+            len = (int)remaining;
+        }
+        int n = in.read(b,off,len);
+        if(n < 0){
+            remaining = 0;
+            return -1;
+        }
+        if(remaining > 0){
+            remaining -= n;
+        }
+        return n;
+    }
+    /**
+     * read up to and including '\n', at most <code>len</code> bytes.
+     */
+    @Override
+    public int readLine(byte[] b,int off,int len) throws IOException{
+        if(remaining < 0 || !(in instanceof ServletInputStream)){
+            return super.readLine(b,off,len);
+        }
+        if(len <= 0){
+            return 0;
+        }
+        if(remaining == 0){
+            return -1;
+        }
+        int n = ((ServletInputStream)in).readLine(b,off,(int)Math.min(len,remaining));
+        if(n < 0){
+            remaining = 0;
+            return -1;
+        }
+        remaining -= n;
+        return n;
+    }
+    @Override
+    public long skip(long n) throws IOException{
+        if(n <= 0 || remaining == 0){
+            return 0;
+        }
+        if(remaining > 0 && n > remaining){
+            n = remaining;
+        }
+        long skipped = in.skip(n);
+        if(skipped <= 0){
+            /* some streams only skip what is buffered; read instead */
+            byte[] buffer = new byte[(int)Math.min(n,SKIP_BUFFER_SIZE)];
+            skipped = read(buffer,0,buffer.length);
+            return Math.max(skipped,0);
+        }
+        if(remaining > 0){
+            remaining -= skipped;
+        }
+        return skipped;
+    }
+    @Override
+    public int available() throws IOException{
+        if(remaining == 0){
+            return 0;
+        }
+        int available = in.available();
+        if(remaining > 0 && available > remaining){
+            return (int)remaining;
+        }
+        return available;
+    }
+    /**
+     * skip what the servlet left unread, so that the next request on the
+     * connection starts at the right byte.
+     *
+     * @param limit most bytes worth skipping
+     * @return false if more than <code>limit</code> bytes were left; the
+     *  connection should then be closed instead
+     */
+    public boolean drain(long limit) throws IOException{
+        if(remaining > limit){
+            return false;
+        }
+        long skipped = 0;
+        while(remaining != 0){
+            long n = skip(SKIP_BUFFER_SIZE);
+            if(n == 0){
+                break;  /* end of stream */
+            }
+            skipped += n;
+            if(skipped > limit){
+                return false;
+            }
+        }
+        return true;
+    }
+    /**
+     * the connection stays open; unread bytes are drained by the server.
+     */
+    @Override
+    public void close() throws IOException{
+    }
+}
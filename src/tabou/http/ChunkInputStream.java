@@ -2,43 +2,218 @@
    This software is released under the MIT License.
    http://opensource.org/licenses/mit-license.php */
 package tabou.http;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import tabou.io.IoUtil;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * decoder of the chunked transfer-coding.
+ * data is copied a chunk segment at a time, chunk sizes are parsed from
+ * the bytes, chunk extensions are skipped and trailers are kept.
+ */
 public class ChunkInputStream extends InputStream {
-    int size  = 0;
-    int point = 0;
+    static private final int MAX_LINE = 8192;
+    long size  = 0;
+    long point = 0;
     InputStream in;
     boolean eof = false;
+    boolean first = true;
+    private Map<String,String> trailers = null;
+    private byte[] line = null;
 
     public ChunkInputStream(InputStream in){
         this.in = in;
     }
     @Override
     public int read() throws IOException{
-        if(eof){
-            //System.err.println("eof:");
+        if(!nextChunk()){
             return -1;
         }
-        if(size == point){
-            if(size != 0){ //not first
-                IoUtil.readLine(in);
-            }
-            String sizeString = IoUtil.readLine(in).trim();
-            size = Integer.parseInt(sizeString,16);
-            //System.err.println(size + ":" + point);
-            point = 0;
-            if(size == 0){
-                eof = true;
-                return -1;
-            }
+        int c = in.read();
+        if(c < 0){
+            throw new EOFException("end of stream in chunk");
         }
         point++;
-        return in.read();
+        return c;
+    }
+    @Override
+    public int read(byte[] b,int off,int len) throws IOException{
+        if(len == 0){
+            return 0;
+        }
+        if(!nextChunk()){
+            return -1;
+        }
+        int n = in.read(b,off,(int)Math.min(len,size - point));
+        if(n < 0){
+            throw new EOFException("end of stream in chunk");
+        }
+        point += n;
+        return n;
+    }
+    /**
+     * bytes of the current chunk that can be read without blocking.
+     */
+    @Override
+    public int available() throws IOException{
+        if(eof || point == size){
+            return 0;
+        }
+        return (int)Math.min(in.available(),size - point);
+    }
+    /**
+     * trailer headers sent after the last chunk, complete once the
+     * stream has returned -1.
+     */
+    public Map<String,String> getTrailers(){
+        if(trailers == null){
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(trailers);
+    }
+    public boolean isFinished(){
+        return eof;
     }
     @Override
     public void close() throws IOException {
         in.close();
     }
+    /**
+     * move to the next chunk when the current one is used up.
+     *
+     * @return false at the end of the body
+     */
+    private boolean nextChunk() throws IOException{
+        if(eof){
+            return false;
+        }
+        if(point < size){
+            return true;
+        }
+        if(!first){
+            skipLine();  /* CRLF after the data */
+        }
+        first = false;
+        size = readSize();
+        point = 0;
+        if(size == 0){
+            readTrailers();
+            eof = true;
+            return false;
+        }
+        return true;
+    }
+    /**
+     * chunk-size [; chunk-ext] CRLF
+     */
+    private long readSize() throws IOException{
+        int length = readLine(false);
+        long value = parseSize(line,0,length);
+        if(value < 0){
+            throw new IOException("invalid chunk size");
+        }
+        return value;
+    }
+    /**
+     * parse a chunk-size line without its LF, skipping any chunk-ext.
+     * shared with the NIO engine, which scans buffered bodies.
+     *
+     * @return the size, or -1 if the line is not a valid chunk size
+     */
+    static long parseSize(byte[] b,int from,int to){
+        long value = 0;
+        int digits = 0;
+        for(int i = from;i < to;i++){
+            int c = b[i];
+            int digit = Character.digit(c,16);
+            if(digit >= 0){
+                if(digits == 15){
+                    return -1;  /* too large */
+                }
+                value = value * 16 + digit;
+                digits++;
+            }else if(c == ';'){
+                break;
+            }else if(c != '\r' && c != ' ' && c != '\t'){
+                return -1;
+            }
+        }
+        if(digits == 0){
+            return -1;
+        }
+        return value;
+    }
+    private void skipLine() throws IOException{
+        while(true){
+            int c = in.read();
+            if(c < 0){
+                throw new EOFException("end of stream in chunk");
+            }
+            if(c == '\n'){
+                return;
+            }
+        }
+    }
+    /**
+     * trailer lines up to the empty line.
+     */
+    private void readTrailers() throws IOException{
+        while(true){
+            int length = readLine(true);
+            if(length == 0){
+                return;
+            }
+            int colon = 0;
+            while(colon < length && line[colon] != ':'){
+                colon++;
+            }
+            if(colon == length){
+                continue;
+            }
+            if(trailers == null){
+                trailers = new LinkedHashMap<String,String>();
+            }
+            String name  = new String(line,0,colon,StandardCharsets.ISO_8859_1).trim();
+            String value = new String(line,colon + 1,length - colon - 1,StandardCharsets.ISO_8859_1).trim();
+            trailers.put(name,value);
+        }
+    }
+    /**
+     * read one line into <code>line</code> without CR LF.
+     *
+     * @param trailer true if the end of stream before a trailer ends the body
+     * @return length of the line
+     */
+    private int readLine(boolean trailer) throws IOException{
+        int length = 0;
+        while(true){
+            int c = in.read();
+            if(c < 0){
+                if(trailer && length == 0){
+                    return 0;  /* end: no trailers */
+                }
+                throw new EOFException(trailer ? "end of stream in trailer" : "end of stream in chunk size");
+            }
+            if(c == '\n'){
+                return length;
+            }
+            if(c == '\r'){
+                continue;
+            }
+            if(line == null){
+                line = new byte[256];
+            }else if(length == line.length){
+                if(length == MAX_LINE){
+                    throw new IOException(trailer ? "trailer too long" : "chunk size line too long");
+                }
+                line = Arrays.copyOf(line,Math.min(length * 2,MAX_LINE));
+            }
+            line[length++] = (byte)c;
+        }
+    }
 }
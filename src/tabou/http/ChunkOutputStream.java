@@ -0,0 +1,169 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * encoder of the chunked transfer-coding.
+ * small writes are gathered into chunks of <code>chunkSize</code> bytes;
+ * room for the size line is kept in front of the buffer so that each
+ * chunk goes out in one write. over a ServletOutputStreamImpl the pieces
+ * of a write (the response head, size line, data, CRLF) are gathered.
+ */
+public class ChunkOutputStream extends OutputStream {
+    static public final int DEFAULT_CHUNK_SIZE = 8192;
+    static private final int RESERVE = 8 + 2;  /* hex size + CRLF */
+    static private final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+    static private final byte[] CRLF = {'\r','\n'};
+    static private final byte[] LAST_CHUNK = {'0','\r','\n'};
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int count = RESERVE;
+    private boolean finished = false;
+    private byte[] prefix = null;
+
+    public ChunkOutputStream(OutputStream out){
+        this(out,DEFAULT_CHUNK_SIZE);
+    }
+    public ChunkOutputStream(OutputStream out,int chunkSize){
+        this.out = out;
+        this.buffer = new byte[RESERVE + chunkSize + CRLF.length];
+    }
+    /**
+     * bytes to send in front of the next chunk, such as the response head.
+     */
+    public void setPrefix(byte[] prefix){
+        this.prefix = prefix;
+    }
+    @Override
+    public void write(int b) throws IOException{
+        if(count == buffer.length - CRLF.length){
+            writeChunk();
+        }
+        buffer[count++] = (byte)b;
+    }
+    @Override
+    public void write(byte[] b,int off,int len) throws IOException{
+        int limit = buffer.length - CRLF.length;
+        if(count == RESERVE && len >= limit - RESERVE){
+            /* a large write is one chunk of its own, without copying */
+            byte[] head = new byte[RESERVE];
+            int start = sizeLine(head,len);
+            send(ByteBuffer.wrap(head,start,RESERVE - start),
+                ByteBuffer.wrap(b,off,len),ByteBuffer.wrap(CRLF));
+            return;
+        }
+        while(len > 0){
+            int n = Math.min(len,limit - count);
+            System.arraycopy(b,off,buffer,count,n);
+            count += n;
+            off += n;
+            len -= n;
+            if(count == limit){
+                writeChunk();
+            }
+        }
+    }
+    /**
+     * send what is gathered as a chunk.
+     */
+    @Override
+    public void flush() throws IOException{
+        writeChunk();
+        out.flush();
+    }
+    /**
+     * send the rest, the last chunk and the trailers.
+     * the underlying stream stays open.
+     *
+     * @param trailers trailer headers, or null
+     */
+    public void finish(Map<String,String> trailers) throws IOException{
+        if(finished){
+            return;
+        }
+        finished = true;
+        StringBuilder sb = new StringBuilder();
+        if(trailers != null){
+            for(Map.Entry<String,String> trailer : trailers.entrySet()){
+                sb.append(trailer.getKey()).append(": ").append(trailer.getValue()).append("\r\n");
+            }
+        }
+        sb.append("\r\n");
+        byte[] tail = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] last = new byte[LAST_CHUNK.length + tail.length];
+        System.arraycopy(LAST_CHUNK,0,last,0,LAST_CHUNK.length);
+        System.arraycopy(tail,0,last,LAST_CHUNK.length,tail.length);
+        int length = count - RESERVE;
+        if(length == 0){
+            send(ByteBuffer.wrap(last));
+        }else{
+            int start = sizeLine(buffer,length);
+            buffer[count++] = '\r';
+            buffer[count++] = '\n';
+            send(ByteBuffer.wrap(buffer,start,count - start),ByteBuffer.wrap(last));
+            count = RESERVE;
+        }
+        out.flush();
+    }
+    /**
+     * same as finish without trailers; the connection is not closed.
+     */
+    @Override
+    public void close() throws IOException{
+        finish(null);
+    }
+    private void writeChunk() throws IOException{
+        int length = count - RESERVE;
+        if(length == 0){
+            if(prefix != null){
+                send();
+            }
+            return;
+        }
+        int start = sizeLine(buffer,length);
+        buffer[count++] = '\r';
+        buffer[count++] = '\n';
+        send(ByteBuffer.wrap(buffer,start,count - start));
+        count = RESERVE;
+    }
+    /**
+     * write the prefix, if any, and the buffers.
+     */
+    private void send(ByteBuffer... buffers) throws IOException{
+        if(prefix != null){
+            ByteBuffer[] all = new ByteBuffer[buffers.length + 1];
+            all[0] = ByteBuffer.wrap(prefix);
+            System.arraycopy(buffers,0,all,1,buffers.length);
+            buffers = all;
+            prefix = null;
+        }
+        if(out instanceof ServletOutputStreamImpl){
+            ((ServletOutputStreamImpl)out).write(buffers);
+            return;
+        }
+        for(ByteBuffer b : buffers){
+            out.write(b.array(),b.arrayOffset() + b.position(),b.remaining());
+        }
+    }
+    /**
+     * write "size CRLF" right aligned in b[0,RESERVE).
+     *
+     * @return offset of the first byte of the line
+     */
+    private static int sizeLine(byte[] b,int size){
+        int i = RESERVE;
+        b[--i] = '\n';
+        b[--i] = '\r';
+        do{
+            b[--i] = HEX[size & 0xf];
+            size >>>= 4;
+        }while(size != 0);
+        return i;
+    }
+}
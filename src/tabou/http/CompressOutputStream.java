@@ -0,0 +1,74 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * gzip or deflate content-coding with a Deflater from {@link Compression}.
+ * the deflater goes back to the pool when the stream is finished.
+ * closing it does not close the underlying stream.
+ */
+public class CompressOutputStream extends DeflaterOutputStream {
+    static private final byte[] GZIP_HEADER = {0x1f,(byte)0x8b,Deflater.DEFLATED,0,0,0,0,0,0,(byte)0xff};
+    private final boolean gzip;
+    private final CRC32 crc;
+    private boolean finished = false;
+
+    /**
+     * @param encoding "gzip" or "deflate"
+     */
+    public CompressOutputStream(OutputStream out,String encoding) throws IOException{
+        this(out,Compression.GZIP.equals(encoding));
+    }
+    private CompressOutputStream(OutputStream out,boolean gzip) throws IOException{
+        super(out,Compression.obtain(gzip),8192);
+        this.gzip = gzip;
+        this.crc = gzip ? new CRC32() : null;
+        if(gzip){
+            out.write(GZIP_HEADER);
+        }
+    }
+    @Override
+    public void write(byte[] b,int off,int len) throws IOException{
+        super.write(b,off,len);
+        if(crc != null){
+            crc.update(b,off,len);
+        }
+    }
+    @Override
+    public void write(int b) throws IOException{
+        byte[] one = {(byte)b};
+        write(one,0,1);
+    }
+    /**
+     * write the rest and the gzip trailer, and give back the deflater.
+     */
+    @Override
+    public void finish() throws IOException{
+        if(finished){
+            return;
+        }
+        finished = true;
+        try{
+            super.finish();
+            if(gzip){
+                int value = (int)crc.getValue();
+                int size = def.getTotalIn();
+                out.write(new byte[]{
+                    (byte)value,(byte)(value >> 8),(byte)(value >> 16),(byte)(value >> 24),
+                    (byte)size,(byte)(size >> 8),(byte)(size >> 16),(byte)(size >> 24)});
+            }
+        }finally{
+            Compression.release(def,gzip);
+        }
+    }
+    @Override
+    public void close() throws IOException{
+        finish();
+    }
+}
@@ -0,0 +1,185 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+/**
+ * content-coding of responses: the choice from Accept-Encoding, a pool of
+ * Deflaters, and a cache of compressed entities keyed by their resource
+ * and entity tag.
+ */
+public class Compression {
+    static public final String GZIP = "gzip";
+    static public final String DEFLATE = "deflate";
+    static public final int DEFAULT_THRESHOLD = 1024;
+    static private final int MAX_POOLED = 64;
+    static private final long MAX_CACHE_SIZE = 8L * 1024 * 1024;
+    static private final int UNSPECIFIED = 0;  /* a coding in Accept-Encoding */
+    static private final int REFUSED     = 1;  /* q=0 */
+    static private final int ACCEPTED    = 2;
+    static private int level = Deflater.DEFAULT_COMPRESSION;
+    static private final ConcurrentLinkedQueue<Deflater> gzipPool = new ConcurrentLinkedQueue<Deflater>();
+    static private final ConcurrentLinkedQueue<Deflater> deflatePool = new ConcurrentLinkedQueue<Deflater>();
+    static private long cacheSize = 0;
+    static private final LinkedHashMap<String,byte[]> cache = new LinkedHashMap<String,byte[]>(64,0.75f,true);
+
+    /**
+     * compression level of new deflaters (0-9).
+     */
+    static public void setLevel(int level){
+        Compression.level = level;
+    }
+    /**
+     * a deflater, raw for gzip (the stream writes the gzip framing) or
+     * zlib for deflate.
+     */
+    static Deflater obtain(boolean gzip){
+        Deflater deflater = (gzip ? gzipPool : deflatePool).poll();
+        if(deflater == null){
+            deflater = new Deflater(level,gzip);
+        }
+        return deflater;
+    }
+    /**
+     * give back a deflater from obtain.
+     */
+    static void release(Deflater deflater,boolean gzip){
+        deflater.reset();
+        ConcurrentLinkedQueue<Deflater> pool = gzip ? gzipPool : deflatePool;
+        if(pool.size() < MAX_POOLED){
+            pool.offer(deflater);
+        }else{
+            deflater.end();
+        }
+    }
+    /**
+     * the content-coding to use for an Accept-Encoding header: gzip, then
+     * deflate, unless refused with q=0. "*" accepts the codings not named;
+     * a coding refused by name stays refused.
+     *
+     * @return GZIP, DEFLATE or null
+     */
+    static public String choose(String acceptEncoding){
+        if(acceptEncoding == null){
+            return null;
+        }
+        int gzip = UNSPECIFIED;
+        int deflate = UNSPECIFIED;
+        int any = UNSPECIFIED;
+        for(String item : acceptEncoding.split(",")){
+            int semicolon = item.indexOf(';');
+            String coding = (semicolon < 0 ? item : item.substring(0,semicolon)).trim().toLowerCase(Locale.ENGLISH);
+            int q = semicolon >= 0 && isZero(item.substring(semicolon + 1)) ? REFUSED : ACCEPTED;
+            if(coding.equals(GZIP) || coding.equals("x-gzip")){
+                gzip = Math.max(gzip,q);
+            }else if(coding.equals(DEFLATE)){
+                deflate = Math.max(deflate,q);
+            }else if(coding.equals("*")){
+                any = Math.max(any,q);
+            }
+        }
+        if(gzip == ACCEPTED || (gzip == UNSPECIFIED && any == ACCEPTED)){
+            return GZIP;
+        }
+        if(deflate == ACCEPTED || (deflate == UNSPECIFIED && any == ACCEPTED)){
+            return DEFLATE;
+        }
+        return null;
+    }
+    static private boolean isZero(String parameter){
+        parameter = parameter.trim();
+        if(!parameter.startsWith("q=")){
+            return false;
+        }
+        try{
+            return Float.parseFloat(parameter.substring(2)) == 0f;
+        }catch(NumberFormatException e){
+            return false;
+        }
+    }
+    /**
+     * is it worth compressing a body of this content type?
+     */
+    static public boolean isCompressible(String contentType){
+        if(contentType == null){
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ENGLISH);
+        return type.startsWith("text/")
+            || type.startsWith("application/json")
+            || type.startsWith("application/javascript")
+            || type.startsWith("application/xml")
+            || type.startsWith("image/svg+xml")
+            || type.contains("+xml")
+            || type.contains("+json");
+    }
+    /**
+     * the entity tag of the compressed variant: "xyz" becomes "xyz-gzip".
+     */
+    static public String variant(String etag,String encoding){
+        if(etag == null || !etag.endsWith("\"")){
+            return etag;
+        }
+        return etag.substring(0,etag.length() - 1) + "-" + encoding + "\"";
+    }
+    /**
+     * compress bytes in memory.
+     */
+    static public byte[] compress(byte[] b,int off,int len,String encoding) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(len / 3 + 64);
+        CompressOutputStream out = new CompressOutputStream(bytes,encoding);
+        out.write(b,off,len);
+        out.finish();
+        return bytes.toByteArray();
+    }
+    /**
+     * compress bytes, reusing the result for the same resource and strong
+     * entity tag. an entity tag only tells apart versions of one resource:
+     * two files of the same size and time have the same one.
+     *
+     * @param resource what the bytes are, a path or request URI, or null
+     * @param etag entity tag of the uncompressed bytes, or null
+     */
+    static public byte[] compress(byte[] b,int off,int len,String encoding,String resource,String etag) throws IOException{
+        if(resource == null || etag == null || etag.startsWith("W/")){
+            return compress(b,off,len,encoding);
+        }
+        String key = encoding + " " + etag + " " + resource;
+        byte[] compressed;
+        synchronized(cache){
+            compressed = cache.get(key);
+        }
+        if(compressed != null){
+            return compressed;
+        }
+        compressed = compress(b,off,len,encoding);
+        if(compressed.length > MAX_CACHE_SIZE){
+            return compressed;
+        }
+        synchronized(cache){
+            byte[] old = cache.put(key,compressed);
+            cacheSize += compressed.length - (old == null ? 0 : old.length);
+            evict();
+        }
+        return compressed;
+    }
+    /**
+     * drop the least recently used entries until the cache fits.
+     * called holding the lock of the cache.
+     */
+    static private void evict(){
+        Iterator<Map.Entry<String,byte[]>> i = cache.entrySet().iterator();
+        while(cacheSize > MAX_CACHE_SIZE && i.hasNext()){
+            cacheSize -= i.next().getValue().length;
+            i.remove();
+        }
+    }
+}
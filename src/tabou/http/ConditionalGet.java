@@ -0,0 +1,145 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.util.Enumeration;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * evaluation of If-None-Match and If-Modified-Since (RFC 7232).
+ * If-None-Match is compared weakly against the entity tag and, when
+ * present, decides alone; If-Modified-Since is compared in whole seconds.
+ */
+public class ConditionalGet {
+    /**
+     * for a GET or HEAD, set the validators on the response and answer 304
+     * if the request is conditional and the client's copy is current.
+     * other methods get neither.
+     *
+     * @param lastModified milliseconds since the epoch, or -1
+     * @param etag quoted entity tag, or null
+     * @return true if the response is 304 and the body must not be generated
+     */
+    static public boolean notModified(HttpServletRequest request,HttpServletResponse response,long lastModified,String etag){
+        if(!isGetOrHead(request)){
+            return false;
+        }
+        if(etag != null){
+            response.setHeader("ETag",etag);
+        }
+        if(lastModified >= 0){
+            response.setDateHeader("Last-Modified",lastModified);
+        }
+        if(!isNotModified(request,lastModified,etag)){
+            return false;
+        }
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+    }
+    /**
+     * is the request a GET or HEAD whose conditions say the client's copy
+     * is current? nothing is set on the response.
+     *
+     * @param lastModified milliseconds since the epoch, or -1
+     * @param etag quoted entity tag, or null
+     */
+    static public boolean isNotModified(HttpServletRequest request,long lastModified,String etag){
+        if(!isGetOrHead(request)){
+            return false;
+        }
+        Enumeration<?> noneMatch = request.getHeaders("If-None-Match");
+        if(noneMatch != null && noneMatch.hasMoreElements()){
+            if(etag == null){
+                return false;
+            }
+            while(noneMatch.hasMoreElements()){
+                if(matches((String)noneMatch.nextElement(),etag)){
+                    return true;
+                }
+            }
+            return false;
+        }
+        if(lastModified < 0){
+            return false;
+        }
+        String modifiedSince = request.getHeader("If-Modified-Since");
+        if(modifiedSince == null){
+            return false;
+        }
+        long since = HttpDate.parse(modifiedSince);
+        return since != -1L && lastModified / 1000 * 1000 <= since;
+    }
+    static private boolean isGetOrHead(HttpServletRequest request){
+        String method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method);
+    }
+    /**
+     * may a Range of the request be honored? true without If-Range, or
+     * if its strong entity tag or date matches.
+     */
+    static public boolean isRangeCurrent(HttpServletRequest request,long lastModified,String etag){
+        String ifRange = request.getHeader("If-Range");
+        if(ifRange == null){
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if(ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+            return etag != null && !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+        long date = HttpDate.parse(ifRange);
+        return date != -1L && lastModified >= 0 && lastModified / 1000 * 1000 == date;
+    }
+    /**
+     * does the list of an If-None-Match header (<code>*</code> or
+     * <code>"a", W/"b"</code>) contain <code>etag</code>, by weak comparison?
+     * the tags of compressed variants (<code>"a-gzip"</code>) match too.
+     */
+    static public boolean matches(String list,String etag){
+        int tagStart = etag.startsWith("W/") ? 2 : 0;
+        int tagLength = etag.length() - tagStart;
+        int end = list.length();
+        int i = 0;
+        while(i < end){
+            char c = list.charAt(i);
+            if(c == ' ' || c == '\t' || c == ','){
+                i++;
+                continue;
+            }
+            if(c == '*'){
+                return true;
+            }
+            if(list.startsWith("W/",i)){
+                i += 2;
+            }
+            if(i >= end || list.charAt(i) != '"'){
+                return false;  /* not a list of entity tags */
+            }
+            int close = list.indexOf('"',i + 1);
+            if(close < 0){
+                return false;
+            }
+            int length = close + 1 - i;
+            if(length == tagLength && list.regionMatches(i,etag,tagStart,tagLength)){
+                return true;
+            }
+            if(isVariant(list,i,length,etag,tagStart,tagLength,Compression.GZIP)
+                    || isVariant(list,i,length,etag,tagStart,tagLength,Compression.DEFLATE)){
+                return true;
+            }
+            i = close + 1;
+        }
+        return false;
+    }
+    /**
+     * is list[i,i+length) the tag etag[tagStart,tagStart+tagLength) with
+     * "-encoding" before the closing quote?
+     */
+    static private boolean isVariant(String list,int i,int length,String etag,int tagStart,int tagLength,String encoding){
+        int opaque = tagLength - 1;  /* without the closing quote */
+        return length == tagLength + 1 + encoding.length()
+            && list.regionMatches(i,etag,tagStart,opaque)
+            && list.charAt(i + opaque) == '-'
+            && list.regionMatches(i + opaque + 1,encoding,0,encoding.length());
+    }
+}
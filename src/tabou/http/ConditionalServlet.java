@@ -0,0 +1,27 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * a servlet that can tell whether the client's copy is still current
+ * before the response is generated. the server then answers a matching
+ * conditional GET with 304 Not Modified without calling doGet.
+ * see {@link ConditionalGet}.
+ */
+public interface ConditionalServlet {
+    /**
+     * same as HttpServlet.getLastModified, made public.
+     *
+     * @return milliseconds since the epoch, or -1 if unknown
+     */
+    long getLastModified(HttpServletRequest request);
+    /**
+     * entity tag of the response, quoted: <code>"xyz"</code>, or
+     * <code>W/"xyz"</code> if weak.
+     *
+     * @return the tag, or null if none
+     */
+    String getETag(HttpServletRequest request);
+}
@@ -9,6 +9,9 @@ import java.io.OutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import tabou.log.TabouLog;
 import static tabou.log.TabouLog.Log;
 
@@ -19,10 +22,12 @@ public class EchoHttpd {
         "Content-type: text/plain\r\n" +
         "Connection: close\r\n" +
         "\r\n").getBytes();
+    static private final long DRAIN_TIMEOUT = 1000 * 100; /* same as SO_TIMEOUT */
     private ServerSocket serverSocket;
+    private ExecutorService executor; /* null: serve on the accept thread */
 
     public static void usage() {
-        System.err.println("usage: java tabou.http.EchoHttp [-p port no]");
+        System.err.println("usage: java tabou.http.EchoHttp [-p port no] [-V]");
         System.exit(-1);
     }
     public static void main(String[] args) throws Exception{
@@ -44,6 +49,9 @@ public class EchoHttpd {
             case 'p':
                 localPort = Integer.parseInt(args[++argi]);  /*port no       */
                 break;
+            case 'V':
+                echoHttpd.setVirtual(true);  /* virtual thread per connection */
+                break;
             default:
                 System.err.println("invalid option:" + c);
                 usage();
@@ -51,24 +59,61 @@ public class EchoHttpd {
         }
         echoHttpd.accrpt(localPort);
     }
+    /**
+     * run each connection on its own virtual thread.
+     */
+    public void setVirtual(boolean virtual){
+        this.executor = virtual ? Executors.newVirtualThreadPerTaskExecutor() : null;
+    }
     public void accrpt(int localPort) throws IOException{
         this.serverSocket = new ServerSocket(localPort);
         while (true) {
             Log.info("wait:*."+ localPort  +" ...");
-            Socket requestSocket = this.serverSocket.accept();
+            final Socket requestSocket = this.serverSocket.accept();
             Log.info("accept:" + requestSocket.getInetAddress());
+            if(executor == null){
+                handle(requestSocket);
+            }else{
+                executor.execute(new Runnable(){
+                    @Override
+                    public void run(){
+                        handle(requestSocket);
+                    }
+                });
+            }
+        }
+    }
+    private void handle(Socket requestSocket){
+        try{
+            request(requestSocket);
+        }catch(Exception e){
+            Log.warning(e.toString());
+        }finally{
             try{
-                request(requestSocket);
-            }catch(Exception e){
-                Log.warning(e.toString());
-            }finally{
                 requestSocket.close();
+            }catch(IOException e){
+                Log.warning(e.toString());
             }
-            Log.info("close");
         }
+        Log.info("close");
     }
+    /**
+     * stop accepting and wait for the connections in flight to finish.
+     */
     public void close() throws IOException{
         this.serverSocket.close();
+        if(executor == null){
+            return;
+        }
+        executor.shutdown();
+        try{
+            if(!executor.awaitTermination(DRAIN_TIMEOUT,TimeUnit.MILLISECONDS)){
+                executor.shutdownNow();
+            }
+        }catch(InterruptedException e){
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
     }
     public void request(Socket requestSocket) throws IOException{
         requestSocket.setSoTimeout(1000 * 100);
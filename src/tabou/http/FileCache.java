@@ -0,0 +1,144 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * least recently used files of a document root, with the headers that
+ * describe them encoded in advance. files up to <code>maxFileSize</code>
+ * are kept in memory; larger ones only by their attributes and are sent
+ * from the disk. an entry is checked against the file at most once a second.
+ */
+public class FileCache {
+    static private final int MAX_ENTRIES = 4096;
+    static private final long CHECK_INTERVAL = 1000;
+    private final ServletContextImpl context;
+    private final int maxFileSize;
+    private final long maxSize;
+    private long size = 0;
+    private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(64,0.75f,true);
+
+    /**
+     * a regular file.
+     */
+    static public class Entry {
+        public final Path file;
+        public final long length;
+        public final long lastModified;
+        public final String etag;
+        public final String contentType;
+        /** the file, or null if it is sent from the disk */
+        public final byte[] body;
+        /** Content-Type, Last-Modified, ETag and Accept-Ranges lines */
+        public final byte[] headers;
+        /** Last-Modified and ETag lines, for 304 */
+        public final byte[] validators;
+        volatile long checked;
+
+        Entry(Path file,BasicFileAttributes attributes,String contentType,byte[] body){
+            this.file = file;
+            this.length = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+            this.contentType = contentType;
+            this.body = body;
+            String validatorLines = "Last-Modified: " + HttpDate.format(lastModified) + "\r\n"
+                + "ETag: " + etag + "\r\n";
+            this.validators = validatorLines.getBytes(StandardCharsets.ISO_8859_1);
+            this.headers = ((contentType == null ? "" : "Content-Type: " + contentType + "\r\n")
+                + validatorLines + "Accept-Ranges: bytes\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            this.checked = System.currentTimeMillis();
+        }
+        long cost(){
+            return body == null ? 0 : body.length;
+        }
+        boolean isCurrent(BasicFileAttributes attributes){
+            return attributes.size() == length
+                && attributes.lastModifiedTime().toMillis() == lastModified;
+        }
+    }
+
+    public FileCache(ServletContextImpl context,int maxFileSize,long maxSize){
+        this.context = context;
+        this.maxFileSize = maxFileSize;
+        this.maxSize = maxSize;
+    }
+    /**
+     * the regular file of a resource path.
+     *
+     * @return the entry, or null if there is no such file
+     */
+    public Entry get(String path) throws IOException{
+        Entry entry;
+        synchronized(entries){
+            entry = entries.get(path);
+        }
+        long now = System.currentTimeMillis();
+        if(entry != null && now - entry.checked < CHECK_INTERVAL){
+            return entry;
+        }
+        Path file = entry != null ? entry.file : context.getResourceFile(path);
+        if(file == null){
+            return null;
+        }
+        BasicFileAttributes attributes;
+        try{
+            attributes = Files.readAttributes(file,BasicFileAttributes.class);
+        }catch(IOException e){
+            remove(path,entry);
+            return null;
+        }
+        if(!attributes.isRegularFile()){
+            remove(path,entry);
+            return null;
+        }
+        if(entry != null && entry.isCurrent(attributes)){
+            entry.checked = now;
+            return entry;
+        }
+        byte[] body = null;
+        if(attributes.size() <= maxFileSize){
+            body = Files.readAllBytes(file);
+            if(body.length != attributes.size()){
+                /* changed while read; serve it, but do not keep it */
+                return new Entry(file,Files.readAttributes(file,BasicFileAttributes.class),
+                    context.getMimeType(path),null);
+            }
+        }
+        Entry loaded = new Entry(file,attributes,context.getMimeType(path),body);
+        synchronized(entries){
+            Entry old = entries.put(path,loaded);
+            if(old != null){
+                size -= old.cost();
+            }
+            size += loaded.cost();
+            Iterator<Entry> eldest = entries.values().iterator();
+            while((size > maxSize || entries.size() > MAX_ENTRIES) && eldest.hasNext()){
+                Entry removed = eldest.next();
+                if(removed == loaded){
+                    continue;
+                }
+                size -= removed.cost();
+                eldest.remove();
+            }
+        }
+        return loaded;
+    }
+    private void remove(String path,Entry entry){
+        if(entry == null){
+            return;
+        }
+        synchronized(entries){
+            if(entries.remove(path,entry)){
+                size -= entry.cost();
+            }
+        }
+    }
+}
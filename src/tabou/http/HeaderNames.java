@@ -0,0 +1,120 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+
+/**
+ * the standard header names, interned.
+ * names are hashed without regard to ASCII case and without making a
+ * lower case copy, so a name in the bytes of a request head is looked up
+ * in an open-addressed table and becomes the constant String.
+ */
+public class HeaderNames {
+    static private final String[] STANDARD = {
+        "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges",
+        "Access-Control-Request-Headers", "Access-Control-Request-Method",
+        "Age", "Allow", "Authorization", "Cache-Control", "Connection",
+        "Content-Disposition", "Content-Encoding", "Content-Language", "Content-Length",
+        "Content-Location", "Content-Range", "Content-Type", "Cookie", "Date", "DNT",
+        "ETag", "Expect", "Expires", "Forwarded", "From", "Host",
+        "If-Match", "If-Modified-Since", "If-None-Match", "If-Range", "If-Unmodified-Since",
+        "Keep-Alive", "Last-Modified", "Location", "Origin", "Pragma", "Proxy-Authorization",
+        "Proxy-Connection", "Range", "Referer", "Sec-Fetch-Dest", "Sec-Fetch-Mode",
+        "Sec-Fetch-Site", "Sec-Fetch-User", "Server", "Set-Cookie", "TE", "Trailer",
+        "Transfer-Encoding", "Upgrade", "Upgrade-Insecure-Requests", "User-Agent",
+        "Vary", "Via", "Warning", "WWW-Authenticate", "X-Forwarded-For",
+        "X-Forwarded-Host", "X-Forwarded-Proto", "X-Real-IP", "X-Requested-With",
+    };
+    static private final int MASK = 255;  /* table size 256, at most 1/4 full */
+    static private final String[] table = new String[MASK + 1];
+    static private final int[] hashes = new int[MASK + 1];
+    static{
+        for(String name : STANDARD){
+            int h = hash(name);
+            int i = h & MASK;
+            while(table[i] != null){
+                i = (i + 1) & MASK;
+            }
+            table[i] = name;
+            hashes[i] = h;
+        }
+    }
+
+    private HeaderNames(){
+    }
+    /**
+     * hash of b[from,to), the same for any ASCII case.
+     */
+    public static int hash(byte[] b,int from,int to){
+        int h = 0;
+        for(int i = from;i < to;i++){
+            h = 31 * h + lower(b[i] & 0xff);
+        }
+        return h;
+    }
+    /**
+     * hash of <code>name</code>, the same for any ASCII case.
+     */
+    public static int hash(String name){
+        int h = 0;
+        for(int i = 0,n = name.length();i < n;i++){
+            h = 31 * h + lower(name.charAt(i));
+        }
+        return h;
+    }
+    /**
+     * the standard name spelled by b[from,to) in any case, or null.
+     *
+     * @param hash hash(b,from,to)
+     */
+    public static String get(byte[] b,int from,int to,int hash){
+        for(int i = hash & MASK;table[i] != null;i = (i + 1) & MASK){
+            if(hashes[i] == hash && equalsIgnoreCase(table[i],b,from,to)){
+                return table[i];
+            }
+        }
+        return null;
+    }
+    /**
+     * the standard name equal to <code>name</code> in any case, or null.
+     */
+    public static String get(String name){
+        int hash = hash(name);
+        for(int i = hash & MASK;table[i] != null;i = (i + 1) & MASK){
+            if(hashes[i] == hash && table[i].equalsIgnoreCase(name)){
+                return table[i];
+            }
+        }
+        return null;
+    }
+    /**
+     * does b[from,to) spell <code>name</code>, without regard to ASCII case?
+     */
+    public static boolean equalsIgnoreCase(String name,byte[] b,int from,int to){
+        int length = name.length();
+        if(to - from != length){
+            return false;
+        }
+        for(int j = 0;j < length;j++){
+            if(lower(b[from + j] & 0xff) != lower(name.charAt(j))){
+                return false;
+            }
+        }
+        return true;
+    }
+    /**
+     * does a[from,to) spell the same as b[off,off + to - from), without
+     * regard to ASCII case?
+     */
+    public static boolean equalsIgnoreCase(byte[] a,int from,int to,byte[] b,int off){
+        for(int i = from;i < to;i++){
+            if(lower(a[i] & 0xff) != lower(b[off + i - from] & 0xff)){
+                return false;
+            }
+        }
+        return true;
+    }
+    static int lower(int c){
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+}
@@ -6,7 +6,16 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-public class HelloServlet extends HttpServlet {
+public class HelloServlet extends HttpServlet implements ConditionalServlet {
+    private static final long LOADED = System.currentTimeMillis();
+    @Override
+    public long getLastModified(HttpServletRequest request) {
+        return LOADED;
+    }
+    @Override
+    public String getETag(HttpServletRequest request) {
+        return "\"hello-" + Long.toHexString(LOADED) + "\"";
+    }
     public void doGet (HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         response.setContentType("text/html; charset=utf-8");
         PrintWriter writer = response.getWriter();
@@ -0,0 +1,272 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * dates of HTTP headers (RFC 1123: "Sun, 06 Nov 1994 08:49:37 GMT").
+ * the current date and its "Date:" header line are made once a second
+ * by a ticker thread and shared by all responses.
+ * parsing also reads RFC 850 and asctime dates, without formatters or
+ * exceptions; the last value parsed is remembered, as clients repeat
+ * the same If-Modified-Since.
+ */
+public class HttpDate {
+    static private final DateTimeFormatter RFC_1123 =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'",Locale.US).withZone(ZoneOffset.UTC);
+
+    /**
+     * one second, formatted.
+     */
+    static private final class Now {
+        final long second;
+        final String date;
+        final byte[] line;
+        Now(long second){
+            this.second = second;
+            this.date = RFC_1123.format(Instant.ofEpochSecond(second));
+            this.line = ("Date: " + date + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+    static private volatile Now now = new Now(System.currentTimeMillis() / 1000);
+
+    /**
+     * a parsed value.
+     */
+    static private final class Parsed {
+        final String value;
+        final long time;
+        Parsed(String value,long time){
+            this.value = value;
+            this.time = time;
+        }
+    }
+    static private volatile Parsed last = new Parsed("",-1L);
+    static private final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+    static{
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable runnable){
+                Thread thread = new Thread(runnable,"HttpDate");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ticker.scheduleAtFixedRate(new Runnable(){
+            @Override
+            public void run(){
+                update();
+            }
+        },1000 - System.currentTimeMillis() % 1000,1000,TimeUnit.MILLISECONDS);
+    }
+    static private Now update(){
+        long second = System.currentTimeMillis() / 1000;
+        Now current = now;
+        if(current.second != second){
+            current = new Now(second);
+            now = current;
+        }
+        return current;
+    }
+    /**
+     * the current date.
+     */
+    static public String getDate(){
+        return now.date;
+    }
+    /**
+     * "Date: " current date CRLF. the array is shared and must not be modified.
+     */
+    static public byte[] getDateLine(){
+        return now.line;
+    }
+    /**
+     * format a time in milliseconds; thread safe.
+     */
+    static public String format(long millis){
+        Now current = now;
+        if(Math.floorDiv(millis,1000) == current.second){
+            return current.date;
+        }
+        return RFC_1123.format(Instant.ofEpochMilli(millis));
+    }
+    /**
+     * parse a date in one of the formats of HTTP/1.1:
+     * <pre>
+     * Sun, 06 Nov 1994 08:49:37 GMT   (RFC 1123)
+     * Sunday, 06-Nov-94 08:49:37 GMT  (RFC 850)
+     * Sun Nov  6 08:49:37 1994        (asctime)
+     * </pre>
+     * anything after the date (";length=" of old clients) is ignored.
+     *
+     * @return milliseconds since the epoch, or -1 if it is not a date
+     */
+    static public long parse(String value){
+        Parsed parsed = last;
+        if(parsed.value.equals(value)){
+            return parsed.time;
+        }
+        long time = parse(value,0,value.length());
+        last = new Parsed(value,time);
+        return time;
+    }
+    static private long parse(String s,int i,int end){
+        /* day of the week */
+        while(i < end && isLetter(s.charAt(i))){
+            i++;
+        }
+        if(i < end && s.charAt(i) == ','){
+            i++;
+        }
+        i = skipSpaces(s,i,end);
+        int day;
+        int month;
+        int year;
+        int[] field = new int[1];
+        if(i < end && isDigit(s.charAt(i))){
+            /* 06 Nov 1994 or 06-Nov-94 */
+            i = number(s,i,end,2,field);
+            day = field[0];
+            if(i >= end || (s.charAt(i) != ' ' && s.charAt(i) != '-')){
+                return -1;
+            }
+            month = month(s,i + 1,end);
+            i += 4;
+            if(month < 0 || i >= end || (s.charAt(i) != ' ' && s.charAt(i) != '-')){
+                return -1;
+            }
+            int start = i + 1;
+            i = number(s,start,end,4,field);
+            year = field[0];
+            if(i - start == 2){
+                year += year < 70 ? 2000 : 1900;
+            }else if(i - start != 4){
+                return -1;
+            }
+            i = skipSpaces(s,i,end);
+            long seconds = time(s,i,end,field);
+            if(seconds < 0){
+                return -1;
+            }
+            i = skipSpaces(s,field[0],end);
+            if(!s.startsWith("GMT",i) && !s.startsWith("UTC",i)){
+                return -1;
+            }
+            return epoch(year,month,day,seconds);
+        }
+        /* Nov  6 08:49:37 1994 */
+        month = month(s,i,end);
+        if(month < 0){
+            return -1;
+        }
+        i = skipSpaces(s,i + 3,end);
+        int start = i;
+        i = number(s,i,end,2,field);
+        day = field[0];
+        if(i == start){
+            return -1;
+        }
+        i = skipSpaces(s,i,end);
+        long seconds = time(s,i,end,field);
+        if(seconds < 0){
+            return -1;
+        }
+        start = skipSpaces(s,field[0],end);
+        i = number(s,start,end,4,field);
+        year = field[0];
+        if(i - start != 4){
+            return -1;
+        }
+        return epoch(year,month,day,seconds);
+    }
+    /**
+     * HH:MM:SS; field[0] is set to the index after it.
+     *
+     * @return seconds of the day, or -1
+     */
+    static private long time(String s,int i,int end,int[] field){
+        int start = i;
+        i = number(s,i,end,2,field);
+        int hour = field[0];
+        if(i - start != 2 || i >= end || s.charAt(i) != ':'){
+            return -1;
+        }
+        start = ++i;
+        i = number(s,i,end,2,field);
+        int minute = field[0];
+        if(i - start != 2 || i >= end || s.charAt(i) != ':'){
+            return -1;
+        }
+        start = ++i;
+        i = number(s,i,end,2,field);
+        int second = field[0];
+        if(i - start != 2 || hour > 23 || minute > 59 || second > 60){
+            return -1;
+        }
+        field[0] = i;
+        return hour * 3600L + minute * 60 + Math.min(second,59);
+    }
+    /**
+     * up to <code>max</code> digits into field[0].
+     *
+     * @return index after the digits
+     */
+    static private int number(String s,int i,int end,int max,int[] field){
+        int value = 0;
+        int limit = Math.min(end,i + max);
+        while(i < limit && isDigit(s.charAt(i))){
+            value = value * 10 + (s.charAt(i) - '0');
+            i++;
+        }
+        field[0] = value;
+        return i;
+    }
+    /**
+     * @return 1 to 12, or -1
+     */
+    static private int month(String s,int i,int end){
+        if(i + 3 > end){
+            return -1;
+        }
+        for(int m = 0;m < 12;m++){
+            if(s.regionMatches(true,i,MONTHS,m * 3,3)){
+                return m + 1;
+            }
+        }
+        return -1;
+    }
+    static private long epoch(int year,int month,int day,long seconds){
+        if(day < 1 || day > 31){
+            return -1;
+        }
+        /* days from civil, proleptic Gregorian */
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y,400);
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        long days = era * 146097L + doe - 719468;
+        return (days * 86400 + seconds) * 1000;
+    }
+    static private int skipSpaces(String s,int i,int end){
+        while(i < end && s.charAt(i) == ' '){
+            i++;
+        }
+        return i;
+    }
+    static private boolean isDigit(char c){
+        return c >= '0' && c <= '9';
+    }
+    static private boolean isLetter(char c){
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+}
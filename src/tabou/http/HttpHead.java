@@ -0,0 +1,496 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * request line and headers of one request, parsed in place.
+ * the head is scanned once for line ends and only offsets are recorded.
+ * the headers the server itself needs (Content-Length, Transfer-Encoding,
+ * Host, Connection, Cookie) are recognised by comparing bytes, and Strings
+ * are only made when a header is asked for.
+ * each name is hashed without regard to case as it is parsed, so a lookup
+ * compares hashes first and never makes a lower case copy; standard names
+ * come back as the interned Strings of HeaderNames.
+ * one instance serves every request of a connection, and instances with
+ * their buffers are pooled between connections.
+ */
+public class HttpHead {
+    static public final int MAX_HEAD_SIZE = 8192;
+    static private final int INITIAL_HEADERS = 32;
+    static private final int MAX_POOLED = 256;  /* heads kept with their buffers */
+    static private final String CHUNKED    = "chunked";
+    static private final String CLOSE      = "close";
+    static private final String KEEP_ALIVE = "keep-alive";
+    static private final Queue<HttpHead> pool = new ConcurrentLinkedQueue<HttpHead>();
+
+    private final byte[] own = new byte[MAX_HEAD_SIZE];
+    private byte[] buffer = own;
+    private int length = -1;
+    private int lineStart, methodEnd, uriStart, uriEnd, protocolStart, protocolEnd;
+    private int headerCount = 0;
+    private int[] nameStart  = new int[INITIAL_HEADERS];
+    private int[] nameEnd    = new int[INITIAL_HEADERS];
+    private int[] valueStart = new int[INITIAL_HEADERS];
+    private int[] valueEnd   = new int[INITIAL_HEADERS];
+    private int[] nameHash   = new int[INITIAL_HEADERS];
+    private String[] names   = new String[INITIAL_HEADERS];
+    private String[] values  = new String[INITIAL_HEADERS];
+    private String method, requestURI, protocol;
+    private long contentLength = -1;
+    private boolean badContentLength = false;
+    private boolean chunked = false;
+    private boolean transferEncoding = false;
+    private boolean chunkedLast = false;  /* chunked is the final coding */
+    private boolean connectionClose = false;
+    private boolean connectionKeepAlive = false;
+    private int host   = -1;
+    private int cookie = -1;
+    private InetSocketAddress localAddress;
+    private InetSocketAddress remoteAddress;
+
+    /**
+     * take a head from the pool.
+     */
+    public static HttpHead obtain(){
+        HttpHead head = pool.poll();
+        return head == null ? new HttpHead() : head;
+    }
+    /**
+     * give this head back to the pool; it must not be used afterwards.
+     * beyond MAX_POOLED heads it is left to the garbage collector.
+     */
+    public void release(){
+        recycle();
+        localAddress = remoteAddress = null;
+        if(pool.size() < MAX_POOLED){
+            pool.offer(this);
+        }
+    }
+    /**
+     * addresses of the connection; kept for all its requests.
+     */
+    public void setConnection(InetSocketAddress localAddress,InetSocketAddress remoteAddress){
+        this.localAddress  = localAddress;
+        this.remoteAddress = remoteAddress;
+    }
+    public InetSocketAddress getLocalAddress(){
+        return localAddress;
+    }
+    public InetSocketAddress getRemoteAddress(){
+        return remoteAddress;
+    }
+    /**
+     * forget the last request, but not the connection.
+     */
+    public void recycle(){
+        Arrays.fill(names,0,headerCount,null);
+        Arrays.fill(values,0,headerCount,null);
+        buffer = own;
+        length = -1;
+        headerCount = 0;
+        method = requestURI = protocol = null;
+        contentLength = -1;
+        badContentLength = false;
+        chunked = transferEncoding = chunkedLast = connectionClose = connectionKeepAlive = false;
+        host = cookie = -1;
+    }
+    /**
+     * read the head from <code>in</code>, which must support mark(), and
+     * leave the stream at the first byte of the body.
+     *
+     * @return false if the stream ended before a request started
+     */
+    public boolean read(InputStream in) throws IOException{
+        in.mark(own.length);
+        int count = 0;
+        while(true){
+            int n = in.read(own,count,own.length - count);
+            if(n < 0){
+                if(count == 0 || skipBlankLines(own,0,count) == count){
+                    return false;
+                }
+                throw new IOException("end of stream in request head");
+            }
+            count += n;
+            if(parse(own,0,count) >= 0){
+                break;
+            }
+            if(count == own.length){
+                throw new IOException("request head too large");
+            }
+        }
+        in.reset();
+        long skip = length;
+        while(skip > 0){
+            long skipped = in.skip(skip);
+            if(skipped <= 0){
+                throw new IOException("end of stream in request head");
+            }
+            skip -= skipped;
+        }
+        return true;
+    }
+    /**
+     * parse a head held in <code>b</code>, which is kept (not copied).
+     *
+     * @return length of the head including the empty line, or -1 if the
+     *  head is not complete yet
+     */
+    public int parse(byte[] b,int off,int len){
+        recycle();
+        int end = off + len;
+        int start = skipBlankLines(b,off,end);
+        int line = start;
+        int eol = indexOfLf(b,line,end);
+        if(eol < 0){
+            return -1;
+        }
+        lineStart = line;
+        int lineEnd = trimEnd(b,line,eol);
+        methodEnd = indexOf(b,line,lineEnd,(byte)' ');
+        uriStart = methodEnd < 0 ? lineEnd : methodEnd + 1;
+        if(methodEnd < 0){
+            methodEnd = lineEnd;
+        }
+        uriEnd = indexOf(b,uriStart,lineEnd,(byte)' ');
+        protocolStart = uriEnd < 0 ? lineEnd : uriEnd + 1;
+        if(uriEnd < 0){
+            uriEnd = lineEnd;
+        }
+        protocolEnd = lineEnd;
+        while(true){
+            line = eol + 1;
+            eol = indexOfLf(b,line,end);
+            if(eol < 0){
+                headerCount = 0;
+                return -1;
+            }
+            int lineEnd2 = trimEnd(b,line,eol);
+            if(lineEnd2 == line){
+                break;  /* empty line */
+            }
+            int colon = indexOf(b,line,lineEnd2,(byte)':');
+            if(colon < 0){
+                continue;  /* not a header, ignored */
+            }
+            addHeader(b,line,colon,trimStart(b,colon + 1,lineEnd2),lineEnd2);
+        }
+        buffer = b;
+        length = eol + 1 - off;
+        return length;
+    }
+    private void addHeader(byte[] b,int ns,int ne,int vs,int ve){
+        if(headerCount == nameStart.length){
+            int size = headerCount * 2;
+            nameStart  = Arrays.copyOf(nameStart,size);
+            nameEnd    = Arrays.copyOf(nameEnd,size);
+            valueStart = Arrays.copyOf(valueStart,size);
+            valueEnd   = Arrays.copyOf(valueEnd,size);
+            nameHash   = Arrays.copyOf(nameHash,size);
+            names      = Arrays.copyOf(names,size);
+            values     = Arrays.copyOf(values,size);
+        }
+        int i = headerCount++;
+        nameStart[i]  = ns;
+        nameEnd[i]    = ne;
+        valueStart[i] = vs;
+        valueEnd[i]   = ve;
+        nameHash[i]   = HeaderNames.hash(b,ns,ne);
+        switch(ne - ns){
+        case 4:
+            if(HeaderNames.equalsIgnoreCase("Host",b,ns,ne)){
+                host = i;
+            }
+            break;
+        case 6:
+            if(HeaderNames.equalsIgnoreCase("Cookie",b,ns,ne)){
+                cookie = i;
+            }
+            break;
+        case 10:
+            if(HeaderNames.equalsIgnoreCase("Connection",b,ns,ne)){
+                connection(b,vs,ve);
+            }
+            break;
+        case 14:
+            if(HeaderNames.equalsIgnoreCase("Content-Length",b,ns,ne)){
+                long value = parseLong(b,vs,ve);
+                if(value < 0 || (contentLength >= 0 && contentLength != value)){
+                    badContentLength = true;
+                }
+                contentLength = value;
+            }
+            break;
+        case 17:
+            if(HeaderNames.equalsIgnoreCase("Transfer-Encoding",b,ns,ne)){
+                /* codings of repeated headers add up, the last one applies last */
+                transferEncoding = true;
+                chunked |= containsToken(b,vs,ve,CHUNKED);
+                chunkedLast = lastTokenIs(b,vs,ve,CHUNKED);
+            }
+            break;
+        }
+    }
+    private void connection(byte[] b,int from,int to){
+        if(containsToken(b,from,to,CLOSE)){
+            connectionClose = true;
+        }
+        if(containsToken(b,from,to,KEEP_ALIVE)){
+            connectionKeepAlive = true;
+        }
+    }
+
+    // ------------------------------------------------------------ accessors
+
+    /**
+     * length of the head in bytes, or -1 before a successful parse.
+     */
+    public int getLength(){
+        return length;
+    }
+    public String getRequestLine(){
+        return string(lineStart,protocolEnd);
+    }
+    public String getMethod(){
+        if(method == null){
+            method = string(lineStart,methodEnd);
+        }
+        return method;
+    }
+    /**
+     * request target as sent, including any query string.
+     */
+    public String getRequestURI(){
+        if(requestURI == null){
+            requestURI = string(uriStart,uriEnd);
+        }
+        return requestURI;
+    }
+    /**
+     * protocol of the request line; a request without one is HTTP/1.0.
+     */
+    public String getProtocol(){
+        if(protocol == null){
+            protocol = protocolStart == protocolEnd ? "HTTP/1.0" : string(protocolStart,protocolEnd);
+        }
+        return protocol;
+    }
+    public boolean isHttp11(){
+        return protocolEnd - protocolStart == 8
+            && buffer[protocolEnd - 1] == '1' && buffer[protocolEnd - 3] == '1';
+    }
+    /**
+     * value of Content-Length, or -1.
+     */
+    public long getContentLength(){
+        return contentLength;
+    }
+    /**
+     * false if the end of the body cannot be told for sure: a
+     * Content-Length that is not a number or two that differ, a
+     * Transfer-Encoding together with a Content-Length, or a
+     * Transfer-Encoding whose final coding is not chunked. such a request
+     * is answered with 400 and the connection closed, or its body could
+     * be read as the next request.
+     */
+    public boolean isValid(){
+        if(badContentLength){
+            return false;
+        }
+        return !transferEncoding || (chunkedLast && contentLength < 0);
+    }
+    public boolean isChunked(){
+        return chunked;
+    }
+    /**
+     * does the client want the connection kept open after this request?
+     */
+    public boolean isKeepAlive(){
+        if(connectionClose){
+            return false;
+        }
+        return isHttp11() || connectionKeepAlive;
+    }
+    public String getHost(){
+        return host < 0 ? null : value(host);
+    }
+    public String getCookie(){
+        return cookie < 0 ? null : value(cookie);
+    }
+    public int getHeaderCount(){
+        return headerCount;
+    }
+    /**
+     * name of the i-th header; a standard name in its usual case.
+     */
+    public String getHeaderName(int i){
+        if(names[i] == null){
+            String name = HeaderNames.get(buffer,nameStart[i],nameEnd[i],nameHash[i]);
+            names[i] = name != null ? name : string(nameStart[i],nameEnd[i]);
+        }
+        return names[i];
+    }
+    public String getHeaderValue(int i){
+        return value(i);
+    }
+    /**
+     * first value of the header, matched without regard to case, or null.
+     */
+    public String getHeader(String name){
+        int i = indexOfHeader(name,HeaderNames.hash(name),0);
+        return i < 0 ? null : value(i);
+    }
+    /**
+     * all values of the header.
+     */
+    public Enumeration<String> getHeaders(String name){
+        int hash = HeaderNames.hash(name);
+        int i = indexOfHeader(name,hash,0);
+        if(i < 0){
+            return Collections.emptyEnumeration();
+        }
+        int next = indexOfHeader(name,hash,i + 1);
+        if(next < 0){
+            return Collections.enumeration(Collections.singletonList(value(i)));
+        }
+        List<String> list = new ArrayList<String>(2);
+        list.add(value(i));
+        for(i = next;i >= 0;i = indexOfHeader(name,hash,i + 1)){
+            list.add(value(i));
+        }
+        return Collections.enumeration(list);
+    }
+    /**
+     * names of the headers, each once.
+     */
+    public Enumeration<String> getHeaderNames(){
+        List<String> list = new ArrayList<String>(headerCount);
+        for(int i = 0;i < headerCount;i++){
+            if(indexOfHeader(i) == i){
+                list.add(getHeaderName(i));
+            }
+        }
+        return Collections.enumeration(list);
+    }
+    private int indexOfHeader(String name,int hash,int from){
+        for(int i = from;i < headerCount;i++){
+            if(nameHash[i] == hash
+                && HeaderNames.equalsIgnoreCase(name,buffer,nameStart[i],nameEnd[i])){
+                return i;
+            }
+        }
+        return -1;
+    }
+    /**
+     * first header with the same name as the k-th.
+     */
+    private int indexOfHeader(int k){
+        int length = nameEnd[k] - nameStart[k];
+        for(int i = 0;i < k;i++){
+            if(nameHash[i] == nameHash[k] && nameEnd[i] - nameStart[i] == length
+                && HeaderNames.equalsIgnoreCase(buffer,nameStart[i],nameEnd[i],buffer,nameStart[k])){
+                return i;
+            }
+        }
+        return k;
+    }
+    private String value(int i){
+        if(values[i] == null){
+            values[i] = string(valueStart[i],valueEnd[i]);
+        }
+        return values[i];
+    }
+    private String string(int from,int to){
+        return new String(buffer,from,to - from,StandardCharsets.ISO_8859_1);
+    }
+
+    // -------------------------------------------------------- byte helpers
+
+    private static int skipBlankLines(byte[] b,int from,int to){
+        while(from < to && (b[from] == '\r' || b[from] == '\n')){
+            from++;
+        }
+        return from;
+    }
+    private static int indexOfLf(byte[] b,int from,int to){
+        return indexOf(b,from,to,(byte)'\n');
+    }
+    private static int indexOf(byte[] b,int from,int to,byte c){
+        for(int i = from;i < to;i++){
+            if(b[i] == c){
+                return i;
+            }
+        }
+        return -1;
+    }
+    private static int trimEnd(byte[] b,int from,int to){
+        while(to > from && (b[to - 1] == '\r' || b[to - 1] == ' ' || b[to - 1] == '\t')){
+            to--;
+        }
+        return to;
+    }
+    private static int trimStart(byte[] b,int from,int to){
+        while(from < to && (b[from] == ' ' || b[from] == '\t')){
+            from++;
+        }
+        return from;
+    }
+    /**
+     * does the comma separated list b[from,to) contain the token?
+     */
+    private static boolean containsToken(byte[] b,int from,int to,String token){
+        int start = from;
+        for(int i = from;i <= to;i++){
+            if(i == to || b[i] == ','){
+                int s = trimStart(b,start,i);
+                int e = trimEnd(b,s,i);
+                if(HeaderNames.equalsIgnoreCase(token,b,s,e)){
+                    return true;
+                }
+                start = i + 1;
+            }
+        }
+        return false;
+    }
+    /**
+     * is the last non-empty item of the comma separated list b[from,to)
+     * the token?
+     */
+    private static boolean lastTokenIs(byte[] b,int from,int to,String token){
+        int end = trimEnd(b,from,to);
+        while(end > from && b[end - 1] == ','){
+            end = trimEnd(b,from,end - 1);
+        }
+        int start = end;
+        while(start > from && b[start - 1] != ','){
+            start--;
+        }
+        return HeaderNames.equalsIgnoreCase(token,b,trimStart(b,start,end),end);
+    }
+    private static long parseLong(byte[] b,int from,int to){
+        if(from == to){
+            return -1;
+        }
+        long value = 0;
+        for(int i = from;i < to;i++){
+            int c = b[i];
+            if(c < '0' || c > '9' || value > Long.MAX_VALUE / 10){
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -16,16 +16,17 @@
 
 package tabou.http;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.security.Principal;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Date;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
@@ -47,6 +48,13 @@ import javax.servlet.http.HttpSession;
 public class HttpServletRequestImpl extends ServletRequestImpl implements HttpServletRequest {
 
 
+    /**
+     * The largest form body whose parameters are parsed.  A larger body is
+     * left unread and its parameters are ignored.
+     */
+    public static final int MAX_FORM_SIZE = 2 * 1024 * 1024;
+
+
     /**
      * The authentication type used for this request.
      */
@@ -65,25 +73,6 @@ public class HttpServletRequestImpl extends ServletRequestImpl implements HttpSe
     protected ArrayList<Cookie> cookies = new ArrayList<Cookie>();
 
 
-    /**
-     * The set of SimpleDateFormat formats to use in getDateHeader().
-     */
-    protected SimpleDateFormat formats[] = {
-        new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US),
-        new SimpleDateFormat("EEEEEE, dd-MMM-yy HH:mm:ss zzz", Locale.US),
-        new SimpleDateFormat("EEE MMMM d HH:mm:ss yyyy", Locale.US)
-    };
-
-
-
-    /**
-     * The HTTP headers associated with this Request, keyed by name.  The
-     * values are ArrayLists of the corresponding header values.
-     */
-    protected HashMap<String,List<String>> headers = new HashMap<String,List<String>> ();
-
-
-
     /**
      * The request method associated with this Request.
      */
@@ -143,11 +132,44 @@ public class HttpServletRequestImpl extends ServletRequestImpl implements HttpSe
      */
     protected Principal userPrincipal = null;
 
-    
+
+    /**
+     * Have the cookies been parsed from the Cookie header yet?
+     */
+    protected boolean cookiesParsed = false;
+
+
+    /**
+     * The request head read from the wire, if any.  Header values are
+     * made into Strings only when asked for.
+     */
+    protected HttpHead head = null;
+
+
+    /**
+     * What the server does for this request if it goes asynchronous, or
+     * null if it cannot.
+     */
+    protected AsyncContext.Container asyncContainer = null;
+
+
     /**
-     * The parameters 
+     * The response that goes with this request.
      */
-    private Map parameters = null;
+    protected HttpServletResponseImpl response = null;
+
+
+    /**
+     * The context created by <code>startAsync()</code>, if any.
+     */
+    protected AsyncContext asyncContext = null;
+
+
+    /**
+     * The request kept for reuse by each worker thread.
+     */
+    private static final ThreadLocal<HttpServletRequestImpl> spare =
+        new ThreadLocal<HttpServletRequestImpl>();
 
 
     // --------------------------------------------------------- Public Methods
@@ -157,6 +179,293 @@ public class HttpServletRequestImpl extends ServletRequestImpl implements HttpSe
     }
 
 
+    /**
+     * Return the recycled request of the current worker thread, or a new
+     * one if there is none for <code>servletContext</code>.
+     *
+     * @param servletContext The context of the request
+     */
+    public static HttpServletRequestImpl obtain(ServletContext servletContext) {
+
+        HttpServletRequestImpl request = spare.get();
+        if ((request == null) || (request.servletContext != servletContext))
+            return (new HttpServletRequestImpl(servletContext));
+        request.checkPoisoned();
+        spare.set(null);
+        return (request);
+
+    }
+
+
+    /**
+     * Recycle this request and keep it for the next <code>obtain()</code>
+     * on the current thread.  It must not be used afterwards.
+     */
+    public void release() {
+
+        checkPoisoned();
+        recycle();
+        spare.set(this);
+
+    }
+
+
+    /**
+     * Release all object references, and initialize instance variables, in
+     * preparation for reuse of this object.
+     */
+    @Override
+    public void recycle() {
+
+        super.recycle();
+        authType = null;
+        contextPath = "";
+        cookies.clear();
+        method = null;
+        pathInfo = null;
+        queryString = null;
+        requestedSessionCookie = false;
+        requestedSessionId = null;
+        requestedSessionURL = false;
+        requestURI = null;
+        servletPath = null;
+        session = null;
+        userPrincipal = null;
+        cookiesParsed = false;
+        head = null;
+        asyncContainer = null;
+        response = null;
+        asyncContext = null;
+
+    }
+
+
+    @Override
+    public void poison() {
+
+        super.poison();
+        cookies = null;
+
+    }
+
+
+    /**
+     * Set the request head the headers of this request are read from.
+     *
+     * @param head The parsed request head
+     */
+    public void setHead(HttpHead head) {
+        this.head = head;
+        this.method = head.getMethod();
+        this.protocol = head.getProtocol();
+        this.scheme = "http";
+        long length = head.getContentLength();
+        this.contentLength = (length > Integer.MAX_VALUE) ? -1 : (int) length;
+        String uri = head.getRequestURI();
+        if (uri.startsWith("http://") || uri.startsWith("https://")) {
+            // absolute-form: keep only the path
+            int slash = uri.indexOf('/', uri.indexOf("//") + 2);
+            uri = (slash < 0) ? "/" : uri.substring(slash);
+        }
+        int question = uri.indexOf('?');
+        if (question >= 0) {
+            this.queryString = uri.substring(question + 1);
+            uri = uri.substring(0, question);
+        }
+        this.requestURI = uri;
+        this.servletPath = uri;
+    }
+
+
+    /**
+     * Let this request go asynchronous.
+     *
+     * @param container What the server does for an asynchronous request
+     * @param response The response that goes with this request
+     */
+    void setAsyncContainer(AsyncContext.Container container, HttpServletResponseImpl response) {
+        this.asyncContainer = container;
+        this.response = response;
+    }
+
+
+    /**
+     * Keep this request and its response open after <code>service()</code>
+     * returns, until the returned context is completed or dispatched.
+     * Called again by a servlet run by <code>dispatch()</code>, it returns
+     * the same context.
+     *
+     * @exception IllegalStateException if the server cannot keep this
+     *  request open, or it is asynchronous already
+     */
+    public AsyncContext startAsync() {
+
+        if (asyncContext != null) {
+            asyncContext.restart();
+            return (asyncContext);
+        }
+        if (asyncContainer == null)
+            throw new IllegalStateException("asynchronous processing is not supported");
+        asyncContext = new AsyncContext(this, response, asyncContainer);
+        return (asyncContext);
+
+    }
+
+
+    /**
+     * Has <code>startAsync()</code> been called, and the request not yet
+     * completed or dispatched?
+     */
+    public boolean isAsyncStarted() {
+
+        return (asyncContext != null && asyncContext.isStarted());
+
+    }
+
+
+    /**
+     * Can this request go asynchronous?
+     */
+    public boolean isAsyncSupported() {
+
+        return (asyncContainer != null);
+
+    }
+
+
+    /**
+     * Return the context created by <code>startAsync()</code>.
+     *
+     * @exception IllegalStateException if the request is not asynchronous
+     */
+    public AsyncContext getAsyncContext() {
+
+        if (!isAsyncStarted())
+            throw new IllegalStateException("not asynchronous");
+        return (asyncContext);
+
+    }
+
+
+    /**
+     * Set the part of the request URI that selected the servlet.
+     *
+     * @param servletPath The servlet path
+     */
+    public void setServletPath(String servletPath) {
+        this.servletPath = servletPath;
+    }
+
+
+    /**
+     * Set the part of the request URI after the servlet path.
+     *
+     * @param pathInfo The path information, or null
+     */
+    public void setPathInfo(String pathInfo) {
+        this.pathInfo = pathInfo;
+    }
+
+
+    /**
+     * Set the stream the body of this request is read from.  It must end
+     * with the body, see <code>BodyInputStream</code>.
+     *
+     * @param input The body of this request
+     */
+    public void setInput(InputStream input) {
+        this.input = input;
+    }
+
+
+    /**
+     * Return the content type, taken from the request head on first use.
+     */
+    @Override
+    public String getContentType() {
+        if (contentType == null && head != null)
+            contentType = head.getHeader("Content-Type");
+        return contentType;
+    }
+
+
+    /**
+     * Return the server name, taken from the Host header or else the
+     * local address.
+     */
+    @Override
+    public String getServerName() {
+        if (serverName == null && head != null)
+            parseHost();
+        return serverName;
+    }
+
+
+    /**
+     * Return the server port, taken from the Host header or else the
+     * local address.
+     */
+    @Override
+    public int getServerPort() {
+        if (serverName == null && head != null)
+            parseHost();
+        return serverPort;
+    }
+
+
+    /**
+     * Return the remote IP address making this Request.
+     */
+    @Override
+    public String getRemoteAddr() {
+        if (remoteAddr == null && head != null && head.getRemoteAddress() != null)
+            remoteAddr = head.getRemoteAddress().getAddress().getHostAddress();
+        return remoteAddr;
+    }
+
+
+    /**
+     * Return the remote host making this Request.  No reverse lookup is
+     * done, the address is returned.
+     */
+    @Override
+    public String getRemoteHost() {
+        if (remoteHost == null)
+            remoteHost = getRemoteAddr();
+        return remoteHost;
+    }
+
+
+    /**
+     * Split the Host header into server name and port.
+     */
+    protected void parseHost() {
+        String host = head.getHost();
+        InetSocketAddress local = head.getLocalAddress();
+        if (host == null || host.length() == 0) {
+            if (local != null) {
+                serverName = local.getHostString();
+                serverPort = local.getPort();
+            } else {
+                serverName = "";
+            }
+            return;
+        }
+        int colon = host.lastIndexOf(':');
+        if (colon > host.lastIndexOf(']')) {
+            serverName = host.substring(0, colon);
+            try {
+                serverPort = Integer.parseInt(host.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                serverPort = 80;
+            }
+        } else {
+            serverName = host;
+            serverPort = 80;
+        }
+    }
+
+
     // --------------------------------------------- HttpServletRequest Methods
 
 
@@ -188,10 +497,14 @@ public class HttpServletRequestImpl extends ServletRequestImpl implements HttpSe
      */
     @Override
     public Cookie[] getCookies() {
-            if (cookies.size() < 1)
-                return (null);
-            Cookie results[] = new Cookie[cookies.size()];
-            return cookies.toArray(results);
+
+        if (!cookiesParsed)
+            parseCookies();
+        if (cookies.size() < 1)
+            return (null);
+        Cookie results[] = new Cookie[cookies.size()];
+        return cookies.toArray(results);
+
     }
 
 
@@ -211,39 +524,49 @@ public class HttpServletRequestImpl extends ServletRequestImpl implements HttpSe
         if (value == null)
             return (-1L);
 
-        // Work around a bug in SimpleDateFormat in pre-JDK1.2b4
-        // (Bug Parade bug #4106807)
-        value += " ";
+        // RFC 1123, RFC 850 or asctime
+        long date = HttpDate.parse(value);
+        if (date == -1L)
+            throw new IllegalArgumentException(value);
+        return (date);
+
+    }
 
-        // Attempt to convert the date header in a variety of formats
-        for (int i = 0; i < formats.length; i++) {
-            try {
-                Date date = formats[i].parse(value);
-                return date.getTime();
-            } catch (ParseException e) {
-                ;
-            }
-        }
-        throw new IllegalArgumentException(value);
 
+    /**
+     * Return the trailer headers sent after a chunked body.  They are
+     * only available once the body has been read to the end.
+     */
+    public Map<String,String> getTrailerFields() {
+        if (input instanceof BodyInputStream)
+            return ((BodyInputStream) input).getTrailers();
+        return Collections.emptyMap();
+    }
+
+
+    /**
+     * Have the trailer headers been read, i.e. has the body been read to
+     * the end?
+     */
+    public boolean isTrailerFieldsReady() {
+        if (input instanceof BodyInputStream)
+            return ((BodyInputStream) input).isFinished();
+        return true;
     }
 
 
     /**
      * Return the first value of the specified header, if any; otherwise,
-     * return <code>null</code>
+     * return <code>null</code>.  The name is matched without regard to
+     * case, and without making a lower case copy of it.
      *
      * @param name Name of the requested header
      */
     @Override
     public String getHeader(String name) {
-        name = name.toLowerCase();
-            List<String> values = headers.get(name);
-            if (values != null){
-                return values.get(0);
-            }else{
-                return null;
-            }
+        if (head == null)
+            return (null);
+        return (head.getHeader(name));
     }
 
     /**
@@ -253,23 +576,21 @@ public class HttpServletRequestImpl extends ServletRequestImpl implements HttpSe
      * @param name Name of the requested header
      */
     @Override
-@SuppressWarnings("unchecked")
     public Enumeration getHeaders(String name) {
-        name = name.toLowerCase();
-        List<String> values = headers.get(name);
-        if (values != null){
-            return Collections.enumeration(values);
-        }
-        return Collections.enumeration(Collections.EMPTY_LIST);
-//        return Collections.enumeration(Collections.emptyList());
+        if (head == null)
+            return (Collections.emptyEnumeration());
+        return (head.getHeaders(name));
     }
 
     /**
-     * Return the names of all headers received with this request.
+     * Return the names of all headers received with this request.  The
+     * standard names are the same String instances on every request.
      */
     @Override
     public Enumeration getHeaderNames() {
-        return Collections.enumeration(headers.keySet());
+        if (head == null)
+            return (Collections.emptyEnumeration());
+        return (head.getHeaderNames());
     }
 
     /**
@@ -300,29 +621,125 @@ public class HttpServletRequestImpl extends ServletRequestImpl implements HttpSe
     }
 
     /**
-     * Returns a <code>Map</code> of the parameters of this request.
-     * Request parameters are extra information sent with the request.
-     * For HTTP servlets, parameters are contained in the query string
-     * or posted form data.
+     * Parse the Cookie header (<code>name=value; name=value</code>).
+     * Cookies the Cookie class rejects are skipped.
+     */
+    protected void parseCookies() {
+        cookiesParsed = true;
+        String header = (head != null) ? head.getCookie() : null;
+        if (header == null)
+            return;
+        for (String pair : header.split(";")) {
+            int equals = pair.indexOf('=');
+            if (equals <= 0)
+                continue;
+            String name = pair.substring(0, equals).trim();
+            String value = pair.substring(equals + 1).trim();
+            if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\""))
+                value = value.substring(1, value.length() - 1);
+            try {
+                cookies.add(new Cookie(name, value));
+            } catch (IllegalArgumentException e) {
+                ;
+            }
+        }
+    }
+
+
+    /**
+     * Decode the query string and, for a urlencoded form, the body.
+     *
+     * @param map The map to add parameters to
+     */
+    @Override
+    protected void parseParameters(Map<String,List<String>> map) {
+        String encoding = getCharacterEncoding();
+        if (queryString != null)
+            parseParameters(map, queryString, encoding);
+        String type = getContentType();
+        if (type == null || input == null || stream != null || reader != null
+            || !type.toLowerCase(Locale.ENGLISH).startsWith("application/x-www-form-urlencoded"))
+            return;
+        if (contentLength > MAX_FORM_SIZE) {
+            servletContext.log("Form body too large, parameters ignored: " + contentLength);
+            return;
+        }
+        try {
+            byte[] body = readBody();
+            if (body == null) {
+                servletContext.log("Form body too large, parameters ignored");
+                return;
+            }
+            parseParameters(map, new String(body, "ISO-8859-1"), encoding);
+        } catch (IOException e) {
+            servletContext.log("Could not read form parameters", e);
+        }
+    }
+
+
+    /**
+     * Read the whole body of this request, at most
+     * <code>MAX_FORM_SIZE</code> bytes.  The buffer grows as the body
+     * arrives; Content-Length only caps its first size.
+     *
+     * @return the body, or <code>null</code> if it is larger
+     * @exception IOException if an input/output error occurs
+     */
+    protected byte[] readBody() throws IOException {
+        byte[] buffer = new byte[2048];
+        ByteArrayOutputStream body = new ByteArrayOutputStream(
+            (contentLength < 0) ? buffer.length : Math.min(contentLength, buffer.length));
+        int n;
+        while ((n = input.read(buffer, 0, buffer.length)) >= 0) {
+            if (body.size() + n > MAX_FORM_SIZE)
+                return (null);
+            body.write(buffer, 0, n);
+        }
+        return (body.toByteArray());
+    }
+
+
+    /**
+     * Decode <code>name=value&amp;name=value</code> pairs into the map.
+     * Pairs that are not validly encoded are skipped.
      *
-     * @return A <code>Map</code> containing parameter names as keys
-     *  and parameter values as map values.
-     */
-    @Override
-    public Map getParameterMap() {
-        if ( parameters == null ) {
-            parameters = new HashMap();
-            if ( queryString != null ) {
-//                try {
-//                    RequestUtil.parseParameters(parameters, queryString, getCharacterEncoding());
-//                }
-//                catch (UnsupportedEncodingException e) {
-//                    servletContext.log( "Could not parse query string: " + queryString, e);
-//                }
-return null;
+     * @param map The map to add parameters to
+     * @param data The encoded parameters
+     * @param encoding The character encoding of the decoded bytes
+     */
+    protected static void parseParameters(Map<String,List<String>> map, String data, String encoding) {
+        int start = 0;
+        while (start <= data.length()) {
+            int end = data.indexOf('&', start);
+            if (end < 0)
+                end = data.length();
+            if (end > start) {
+                int equals = data.indexOf('=', start);
+                String name, value;
+                if (equals < 0 || equals > end) {
+                    name = data.substring(start, end);
+                    value = "";
+                } else {
+                    name = data.substring(start, equals);
+                    value = data.substring(equals + 1, end);
+                }
+                try {
+                    name = URLDecoder.decode(name, encoding);
+                    value = URLDecoder.decode(value, encoding);
+                    List<String> values = map.get(name);
+                    if (values == null) {
+                        values = new ArrayList<String>(1);
+                        map.put(name, values);
+                    }
+                    values.add(value);
+                } catch (IllegalArgumentException e) {
+                    ;
+                } catch (UnsupportedEncodingException e) {
+                    return;
+                }
             }
+            start = end + 1;
         }
-        return parameters;
     }
 
     /**
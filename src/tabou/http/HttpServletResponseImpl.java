@@ -19,13 +19,12 @@ package tabou.http;
 
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.List;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.function.Supplier;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
@@ -46,15 +45,6 @@ public class HttpServletResponseImpl extends ServletResponseImpl implements Http
      */
     protected ArrayList<Cookie> cookies = new ArrayList<Cookie>();
 
-    /**
-     * The date format we will use for creating date headers.
-     */
-    protected static final SimpleDateFormat format =
-        new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",Locale.US);
-    static {
-        format.setTimeZone(TimeZone.getTimeZone("GMT"));
-    };
-
     /**
      * The HTTP status code associated with this Response.
      */
@@ -65,34 +55,442 @@ public class HttpServletResponseImpl extends ServletResponseImpl implements Http
      */
     protected static final TimeZone zone = TimeZone.getTimeZone("GMT");
 
+    /**
+     * The protocol written in the status line, following the request.
+     */
+    protected String protocol = "HTTP/1.0";
+
+    /**
+     * Will the connection be reused for another request after this response?
+     */
+    protected boolean keepAlive = false;
+
+    /**
+     * Size of the chunks when the body is sent chunked.
+     */
+    protected int chunkSize = ChunkOutputStream.DEFAULT_CHUNK_SIZE;
+
+    /**
+     * The chunked encoder of the body, if the response is sent chunked.
+     */
+    protected ChunkOutputStream chunkOutputStream = null;
+
+    /**
+     * Supplier of the trailer headers sent after a chunked body.
+     */
+    protected Supplier<Map<String,String>> trailerFields = null;
+
+    /**
+     * Header lines encoded in advance, sent after the other headers.
+     */
+    protected byte[] encodedHeaders = null;
+
+    /**
+     * The Accept-Encoding header of the request.
+     */
+    protected String acceptEncoding = null;
+
+    /**
+     * Smallest body that is compressed, or -1 if compression is off.
+     */
+    protected int compressionThreshold = -1;
+
+    /**
+     * The resource this response is for (the request URI), which keys the
+     * cache of compressed bodies together with the entity tag.
+     */
+    protected String resource = null;
+
+    /**
+     * The content-coding applied to the body by this response, if any.
+     */
+    protected String contentCoding = null;
+
+    /**
+     * The compressor of a body that is compressed as it is written.
+     */
+    protected CompressOutputStream compressOutputStream = null;
+
+    /**
+     * The response kept for reuse by each worker thread.
+     */
+    private static final ThreadLocal<HttpServletResponseImpl> spare =
+        new ThreadLocal<HttpServletResponseImpl>();
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the recycled response of the current worker thread, or a new
+     * one if there is none.
+     */
+    public static HttpServletResponseImpl obtain() {
+
+        HttpServletResponseImpl response = spare.get();
+        if (response == null)
+            return (new HttpServletResponseImpl());
+        response.checkPoisoned();
+        spare.set(null);
+        return (response);
+
+    }
+
+
+    /**
+     * Recycle this response and keep it for the next <code>obtain()</code>
+     * on the current thread.  It must not be used afterwards.
+     */
+    public void release() {
+
+        checkPoisoned();
+        recycle();
+        spare.set(this);
+
+    }
+
+
+    /**
+     * Release all object references, and initialize instance variables, in
+     * preparation for reuse of this object.
+     */
+    @Override
+    public void recycle() {
+
+        super.recycle();
+        cookies.clear();
+        status = HttpServletResponse.SC_OK;
+        protocol = "HTTP/1.0";
+        keepAlive = false;
+        chunkSize = ChunkOutputStream.DEFAULT_CHUNK_SIZE;
+        chunkOutputStream = null;
+        trailerFields = null;
+        encodedHeaders = null;
+        acceptEncoding = null;
+        compressionThreshold = -1;
+        resource = null;
+        contentCoding = null;
+        compressOutputStream = null;
+
+    }
+
+
+    @Override
+    public void poison() {
+
+        super.poison();
+        cookies = null;
+
+    }
+
+
+    /**
+     * Set the protocol of the status line (<code>HTTP/1.0</code> or
+     * <code>HTTP/1.1</code>).
+     *
+     * @param protocol The protocol of the request
+     */
+    public void setProtocol(String protocol) {
+
+        this.protocol = protocol;
+
+    }
+
+
+    /**
+     * Request that the connection be kept open after this response.
+     * The request is dropped at commit time if the body cannot be delimited.
+     *
+     * @param keepAlive true if the client and server allow reuse
+     */
+    public void setKeepAlive(boolean keepAlive) {
+
+        this.keepAlive = keepAlive;
+
+    }
+
+
+    /**
+     * Will the connection be kept open after this response?
+     */
+    public boolean isKeepAlive() {
+
+        return (keepAlive);
+
+    }
+
+
+    /**
+     * Set the size of the chunks used when the length of the body is not
+     * known in advance.
+     *
+     * @param chunkSize The chunk size in bytes
+     */
+    public void setChunkSize(int chunkSize) {
+
+        this.chunkSize = chunkSize;
+
+    }
+
+
+    /**
+     * Set the supplier of trailer headers, sent after the last chunk if the
+     * body is sent chunked.
+     *
+     * @param supplier The supplier of trailer headers
+     */
+    public void setTrailerFields(Supplier<Map<String,String>> supplier) {
+
+        if (isCommitted())
+            throw new IllegalStateException( "response has already been committed" );
+        this.trailerFields = supplier;
+
+    }
+
+
+    /**
+     * Set header lines that are already encoded ("Name: value" CRLF each),
+     * such as those kept with a cached file.  They are sent as they are,
+     * after the other headers, and are not seen by <code>containsHeader()</code>.
+     *
+     * @param encodedHeaders The header lines, or null
+     */
+    public void setEncodedHeaders(byte[] encodedHeaders) {
+
+        if (isCommitted())
+            return;
+        this.encodedHeaders = encodedHeaders;
+
+    }
+
+
+    /**
+     * Compress the body with gzip or deflate when the request accepts it,
+     * the content type is textual, the status is 200 and the body is at
+     * least <code>threshold</code> bytes.
+     *
+     * @param acceptEncoding The Accept-Encoding header of the request
+     * @param threshold Smallest body to be compressed, or -1 for none
+     */
+    public void setCompression(String acceptEncoding, int threshold) {
+
+        this.acceptEncoding = acceptEncoding;
+        this.compressionThreshold = threshold;
+
+    }
+
+
+    /**
+     * Set the resource this response is for; a body compressed in one go
+     * is cached under it and its entity tag.
+     *
+     * @param resource The request URI
+     */
+    public void setResource(String resource) {
+
+        this.resource = resource;
+
+    }
+
+
+    /**
+     * Return the content-coding this response would apply to a body of the
+     * given type and length, or null.  A servlet that has the compressed
+     * body at hand (a cached or <code>.gz</code> file) sets
+     * Content-Encoding itself, and the body is then left alone.
+     *
+     * @param contentType The content type of the body
+     * @param length The length of the body, or -1 if unknown
+     */
+    public String chooseContentCoding(String contentType, long length) {
+
+        if (compressionThreshold < 0 || status != SC_OK
+            || headers.contains("Content-Encoding")
+            || !Compression.isCompressible(contentType))
+            return (null);
+        if (length >= 0 && length < compressionThreshold)
+            return (null);
+        return (Compression.choose(acceptEncoding));
+
+    }
+
+
+    /**
+     * Is compression turned on for this response?
+     */
+    public boolean isCompressionEnabled() {
+
+        return (compressionThreshold >= 0);
+
+    }
+
+
+    /**
+     * Mark the body as compressed: set Content-Encoding and give the
+     * entity tag of the compressed variant.
+     */
+    protected void applyContentCoding(String coding) {
+
+        contentCoding = coding;
+        setHeader("Content-Encoding", coding);
+        String etag = headers.get("ETag");
+        if (etag != null)
+            setHeader("ETag", Compression.variant(etag, coding));
+
+    }
+
+
+    /**
+     * Return the content type set on this response, if any.
+     */
+    protected String contentTypeHeader() {
+
+        return (headers.getContentType());
+
+    }
+
+
+    /**
+     * Return the supplier of trailer headers, if any.
+     */
+    public Supplier<Map<String,String>> getTrailerFields() {
+
+        return (trailerFields);
+
+    }
+
+
+    /**
+     * Complete this response: flush the writer, send the buffer and end a
+     * chunked body.  A response that is still in the buffer gets its
+     * Content-Length from the buffer and goes out in one write.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void finishResponse() throws IOException {
+
+        flushWriter();
+        if (!isCommitted()) {
+            if (contentLength < 0)
+                contentLength = bufferCount;
+            String coding = (contentLength == bufferCount)
+                ? chooseContentCoding(contentTypeHeader(), bufferCount) : null;
+            if (coding != null) {
+                // the whole body is at hand: compress it in one go
+                byte[] compressed = Compression.compress(buffer, 0, bufferCount, coding,
+                    resource, headers.get("ETag"));
+                applyContentCoding(coding);
+                contentLength = compressed.length;
+                bufferCount = 0;
+                writeBuffer(compressed, 0, compressed.length);
+            } else {
+                writeBuffer();
+            }
+        } else {
+            writeBuffer();
+        }
+        if (compressOutputStream != null) {
+            compressOutputStream.finish();
+        }
+        if (chunkOutputStream != null) {
+            chunkOutputStream.finish(trailerFields == null ? null : trailerFields.get());
+        }
+        stream.flush();
+
+    }
+
     // ------------------------------------------------ ServletResponse Methods
 
 
     /**
-     * Flush the buffer and commit this response.  If this is the first output,
-     * send the HTTP headers prior to the user data.
+     * Build the status line and headers, and commit this response.
+     * Without a content length the body is sent chunked on a kept-alive
+     * HTTP/1.1 connection; otherwise its end can only be marked by
+     * closing the connection.  1xx, 204 and 304 responses have no body;
+     * anything written is discarded.  A body that is compressed as it is
+     * written has no content length.
      *
+     * @return the status line and headers
      * @exception IOException if an input/output error occurs
      */
     @Override
-    public void flushBuffer() throws IOException {
-/*
-        if (!isCommitted()) {
-            sendHeaders();
+    protected byte[] commit() throws IOException {
+
+        if ("close".equalsIgnoreCase(headers.getConnection()))
+            keepAlive = false;
+        boolean bodiless = status < SC_OK || status == SC_NO_CONTENT
+            || status == SC_NOT_MODIFIED;
+        String streamCoding = null;
+        if (contentCoding == null && !bodiless) {
+            streamCoding = chooseContentCoding(contentTypeHeader(), contentLength);
+            if (streamCoding != null) {
+                applyContentCoding(streamCoding);
+                contentLength = -1;
+            }
+        }
+        if (compressionThreshold >= 0 && !headers.contains("Vary")
+            && Compression.isCompressible(contentTypeHeader()))
+            setHeader("Vary", "Accept-Encoding");
+        boolean chunked = false;
+        if (bodiless) {
+            contentLength = -1;
+        } else if (contentLength < 0) {
+            if (keepAlive && protocol.equals("HTTP/1.1")) {
+                chunked = true;
+            } else {
+                keepAlive = false;
+            }
         }
-*/
-        StringBuilder headStr = new StringBuilder("HTTP/1.0 " + status + " OK\r\n");
-        for(String name : headers.keySet()){
-            for(String value : headers.get(name)){
-                headStr.append(name);
-                headStr.append(": ");
-                headStr.append(value);
-                headStr.append("\r\n");
+        ResponseHead responseHead = new ResponseHead();
+        responseHead.append(HttpStatus.getStatusLine(protocol, status));
+        if (headers.getDate() == null)
+            responseHead.append(HttpDate.getDateLine());
+        else
+            responseHead.header("Date", headers.getDate());
+        if (headers.getContentType() != null)
+            responseHead.header("Content-Type", headers.getContentType());
+        for (int i = 0; i < headers.size(); i++) {
+            String name = headers.getName(i);
+            if (name.equalsIgnoreCase("Transfer-Encoding"))
+                continue;
+            responseHead.header(name, headers.getValue(i));
+        }
+        if (encodedHeaders != null)
+            responseHead.append(encodedHeaders);
+        if (contentLength >= 0) {
+            responseHead.header(ResponseHead.CONTENT_LENGTH, contentLength);
+        } else if (chunked) {
+            responseHead.append(ResponseHead.TRANSFER_ENCODING_CHUNKED);
+        }
+        if (!keepAlive) {
+            responseHead.append(ResponseHead.CONNECTION_CLOSE);
+        } else if (protocol.equals("HTTP/1.0")) {
+            responseHead.append(ResponseHead.CONNECTION_KEEP_ALIVE);
+        }
+        responseHead.append(ResponseHead.CRLF);
+        committed = true;
+        byte[] head = responseHead.toByteArray();
+        if (chunked) {
+            // the head goes out with the first chunk
+            chunkOutputStream = new ChunkOutputStream(stream, chunkSize);
+            chunkOutputStream.setPrefix(head);
+            bodyStream = new ServletOutputStreamImpl(chunkOutputStream);
+            head = new byte[0];
+        } else if (bodiless) {
+            bodyStream = new ServletOutputStreamImpl(OutputStream.nullOutputStream());
+        } else {
+            bodyStream = stream;
+        }
+        if (streamCoding != null) {
+            if (head.length > 0) {
+                // the compressor writes its header right away
+                stream.write(head, 0, head.length);
+                head = new byte[0];
             }
+            compressOutputStream = new CompressOutputStream(bodyStream, streamCoding);
+            bodyStream = new ServletOutputStreamImpl(compressOutputStream);
         }
-        headStr.append("\r\n");
-        getOutputStream().write(headStr.toString().getBytes());
-        super.flushBuffer();
+        return (head);
+
     }
 
 
@@ -109,6 +507,8 @@ public class HttpServletResponseImpl extends ServletResponseImpl implements Http
         super.reset();
         cookies.clear();
         headers.clear();
+        encodedHeaders = null;
+        contentCoding = null;
 //        message = null;
         status = HttpServletResponse.SC_OK;
 
@@ -209,7 +609,7 @@ public class HttpServletResponseImpl extends ServletResponseImpl implements Http
         if (isCommitted())
             return;
 
-        addHeader(name, format.format(new Date(value)));
+        addHeader(name, HttpDate.format(value));
 
     }
 
@@ -226,14 +626,10 @@ public class HttpServletResponseImpl extends ServletResponseImpl implements Http
         if (isCommitted())
             return;
 
-        synchronized (headers) {
-            List<String> values = headers.get(name);
-            if (values == null) {
-                values = new ArrayList<String>();
-                headers.put(name, values);
-            }
-            values.add(value);
-        }
+        if (isContentLength(name))
+            setContentLength(value);
+        else
+            headers.add(name, value);
 
     }
 
@@ -262,7 +658,9 @@ public class HttpServletResponseImpl extends ServletResponseImpl implements Http
      */
     @Override
     public boolean containsHeader(String name) {
-            return (headers.get(name) != null);
+        if (isContentLength(name))
+            return (contentLength >= 0);
+        return (headers.contains(name));
     }
 
 
@@ -340,7 +738,7 @@ public class HttpServletResponseImpl extends ServletResponseImpl implements Http
     @Override
     public void sendError(int status) throws IOException {
 
-//        sendError(status, getStatusMessage(status));
+        sendError(status, HttpStatus.getReason(status));
 
     }
 
@@ -432,7 +830,7 @@ public class HttpServletResponseImpl extends ServletResponseImpl implements Http
         if (isCommitted())
             return;
 
-        setHeader(name, format.format(new Date(value)));
+        setHeader(name, HttpDate.format(value));
 
     }
 
@@ -449,25 +847,38 @@ public class HttpServletResponseImpl extends ServletResponseImpl implements Http
         if (isCommitted())
             return;
 
-        ArrayList<String> values = new ArrayList<String>();
-        values.add(value);
-        synchronized (headers) {
-            headers.put(name, values);
-        }
+        if (isContentLength(name))
+            setContentLength(value);
+        else
+            headers.set(name, value);
 
-        String match = name.toLowerCase();
-        if (match.equals("content-length")) {
-            int contentLength = -1;
-            try {
-                contentLength = Integer.parseInt(value);
-            } catch (NumberFormatException e) {
-                ;
-            }
-            if (contentLength >= 0)
-                setContentLength(contentLength);
-        } else if (match.equals("content-type")) {
-            setContentType(value);
+    }
+
+
+    /**
+     * Is <code>name</code> Content-Length, which is kept as a number?
+     */
+    private static boolean isContentLength(String name) {
+
+        return (name.length() == 14 && name.equalsIgnoreCase("Content-Length"));
+
+    }
+
+
+    /**
+     * Set the content length from a header value; an invalid value is
+     * ignored.
+     */
+    private void setContentLength(String value) {
+
+        long contentLength = -1;
+        try {
+            contentLength = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            ;
         }
+        if (contentLength >= 0)
+            setContentLengthLong(contentLength);
 
     }
 
@@ -489,6 +900,16 @@ public class HttpServletResponseImpl extends ServletResponseImpl implements Http
     }
 
 
+    /**
+     * Return the HTTP status of this response.
+     */
+    public int getStatus() {
+
+        return (status);
+
+    }
+
+
     /**
      * Set the HTTP status to be returned with this response.
      *
@@ -497,7 +918,9 @@ public class HttpServletResponseImpl extends ServletResponseImpl implements Http
     @Override
     public void setStatus(int status) {
 
-//        setStatus(status, getStatusMessage(status));
+        if (isCommitted())
+            return;
+        this.status = status;
 
     }
 
@@ -515,7 +938,7 @@ public class HttpServletResponseImpl extends ServletResponseImpl implements Http
     @Override
     public void setStatus(int status, String message) {
 
-        this.status = status;
+        setStatus(status);
 //        this.message = message;
 
     }
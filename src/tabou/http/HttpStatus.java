@@ -0,0 +1,91 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * reason phrases and pre-encoded status lines ("HTTP/1.1 404 Not Found" CRLF)
+ * of the status codes, so that a response head does not build them.
+ */
+public class HttpStatus {
+    static private final int MIN = 100;
+    static private final int MAX = 599;
+    static private final String[] REASONS = new String[MAX - MIN + 1];
+    static private final byte[][] HTTP10 = new byte[MAX - MIN + 1][];
+    static private final byte[][] HTTP11 = new byte[MAX - MIN + 1][];
+    static{
+        reason(HttpServletResponse.SC_CONTINUE,"Continue");
+        reason(HttpServletResponse.SC_SWITCHING_PROTOCOLS,"Switching Protocols");
+        reason(HttpServletResponse.SC_OK,"OK");
+        reason(HttpServletResponse.SC_CREATED,"Created");
+        reason(HttpServletResponse.SC_ACCEPTED,"Accepted");
+        reason(HttpServletResponse.SC_NON_AUTHORITATIVE_INFORMATION,"Non-Authoritative Information");
+        reason(HttpServletResponse.SC_NO_CONTENT,"No Content");
+        reason(HttpServletResponse.SC_RESET_CONTENT,"Reset Content");
+        reason(HttpServletResponse.SC_PARTIAL_CONTENT,"Partial Content");
+        reason(HttpServletResponse.SC_MULTIPLE_CHOICES,"Multiple Choices");
+        reason(HttpServletResponse.SC_MOVED_PERMANENTLY,"Moved Permanently");
+        reason(HttpServletResponse.SC_MOVED_TEMPORARILY,"Found");
+        reason(HttpServletResponse.SC_SEE_OTHER,"See Other");
+        reason(HttpServletResponse.SC_NOT_MODIFIED,"Not Modified");
+        reason(HttpServletResponse.SC_USE_PROXY,"Use Proxy");
+        reason(HttpServletResponse.SC_TEMPORARY_REDIRECT,"Temporary Redirect");
+        reason(HttpServletResponse.SC_BAD_REQUEST,"Bad Request");
+        reason(HttpServletResponse.SC_UNAUTHORIZED,"Unauthorized");
+        reason(HttpServletResponse.SC_PAYMENT_REQUIRED,"Payment Required");
+        reason(HttpServletResponse.SC_FORBIDDEN,"Forbidden");
+        reason(HttpServletResponse.SC_NOT_FOUND,"Not Found");
+        reason(HttpServletResponse.SC_METHOD_NOT_ALLOWED,"Method Not Allowed");
+        reason(HttpServletResponse.SC_NOT_ACCEPTABLE,"Not Acceptable");
+        reason(HttpServletResponse.SC_PROXY_AUTHENTICATION_REQUIRED,"Proxy Authentication Required");
+        reason(HttpServletResponse.SC_REQUEST_TIMEOUT,"Request Timeout");
+        reason(HttpServletResponse.SC_CONFLICT,"Conflict");
+        reason(HttpServletResponse.SC_GONE,"Gone");
+        reason(HttpServletResponse.SC_LENGTH_REQUIRED,"Length Required");
+        reason(HttpServletResponse.SC_PRECONDITION_FAILED,"Precondition Failed");
+        reason(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,"Request Entity Too Large");
+        reason(HttpServletResponse.SC_REQUEST_URI_TOO_LONG,"Request-URI Too Long");
+        reason(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,"Unsupported Media Type");
+        reason(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,"Requested Range Not Satisfiable");
+        reason(HttpServletResponse.SC_EXPECTATION_FAILED,"Expectation Failed");
+        reason(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,"Internal Server Error");
+        reason(HttpServletResponse.SC_NOT_IMPLEMENTED,"Not Implemented");
+        reason(HttpServletResponse.SC_BAD_GATEWAY,"Bad Gateway");
+        reason(HttpServletResponse.SC_SERVICE_UNAVAILABLE,"Service Unavailable");
+        reason(HttpServletResponse.SC_GATEWAY_TIMEOUT,"Gateway Timeout");
+        reason(HttpServletResponse.SC_HTTP_VERSION_NOT_SUPPORTED,"HTTP Version Not Supported");
+    }
+    static private void reason(int status,String reason){
+        REASONS[status - MIN] = reason;
+        HTTP10[status - MIN] = encode("HTTP/1.0",status,reason);
+        HTTP11[status - MIN] = encode("HTTP/1.1",status,reason);
+    }
+    static private byte[] encode(String protocol,int status,String reason){
+        return (protocol + " " + status + " " + reason + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+    /**
+     * reason phrase of <code>status</code>, or an empty string if unknown.
+     */
+    static public String getReason(int status){
+        if(status < MIN || status > MAX || REASONS[status - MIN] == null){
+            return "";
+        }
+        return REASONS[status - MIN];
+    }
+    /**
+     * status line with CRLF. the array is shared and must not be modified.
+     */
+    static public byte[] getStatusLine(String protocol,int status){
+        if(status >= MIN && status <= MAX && REASONS[status - MIN] != null){
+            if("HTTP/1.1".equals(protocol)){
+                return HTTP11[status - MIN];
+            }
+            if("HTTP/1.0".equals(protocol)){
+                return HTTP10[status - MIN];
+            }
+        }
+        return encode(protocol,status,getReason(status));
+    }
+}
@@ -0,0 +1,56 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * content types by file extension.
+ */
+public class MimeTypes {
+    static private final Map<String,String> types = new HashMap<String,String>();
+    static{
+        types.put("html","text/html");
+        types.put("htm","text/html");
+        types.put("txt","text/plain");
+        types.put("css","text/css");
+        types.put("csv","text/csv");
+        types.put("xml","text/xml");
+        types.put("js","text/javascript");
+        types.put("mjs","text/javascript");
+        types.put("json","application/json");
+        types.put("map","application/json");
+        types.put("pdf","application/pdf");
+        types.put("zip","application/zip");
+        types.put("gz","application/gzip");
+        types.put("jar","application/java-archive");
+        types.put("wasm","application/wasm");
+        types.put("png","image/png");
+        types.put("gif","image/gif");
+        types.put("jpg","image/jpeg");
+        types.put("jpeg","image/jpeg");
+        types.put("svg","image/svg+xml");
+        types.put("ico","image/x-icon");
+        types.put("webp","image/webp");
+        types.put("woff","font/woff");
+        types.put("woff2","font/woff2");
+        types.put("ttf","font/ttf");
+        types.put("mp3","audio/mpeg");
+        types.put("mp4","video/mp4");
+        types.put("webm","video/webm");
+    }
+    /**
+     * content type of <code>file</code> from its extension, or null.
+     */
+    static public String get(String file){
+        if(file == null){
+            return null;
+        }
+        int dot = file.lastIndexOf('.');
+        if(dot < 0 || dot < file.lastIndexOf('/')){
+            return null;
+        }
+        return types.get(file.substring(dot + 1).toLowerCase());
+    }
+}
@@ -0,0 +1,677 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import tabou.log.TabouLog;
+import static tabou.log.TabouLog.Log;
+import javax.servlet.ServletException;
+
+/**
+ * non-blocking engine.
+ * selector threads read the request head and body without blocking,
+ * the servlet runs on a worker only once the whole request is buffered,
+ * and the response is written back by the selector thread a chunk at a
+ * time, the worker waiting while a chunk is sent.
+ * kept-alive connections go back to reading, pipelined requests already
+ * in the buffer are parsed right away.
+ * as the whole request is buffered, a request larger than MAX_REQUEST_SIZE
+ * is refused with 413; this is deliberate, large uploads belong on the
+ * blocking engine, which streams request bodies. files are sent through
+ * the chunks, there is no sendfile here.
+ * request handling itself is {@link Servletd#request(HttpHead,ServletInputStreamImpl,javax.servlet.ServletOutputStream,boolean,Servletd.Completion)}.
+ */
+public class NioServletd {
+    static private final int DEFAULT_PROXY_PORT  = 8080;
+    static private final int DEFAULT_SELECTORS   = Runtime.getRuntime().availableProcessors();
+    static private final int DEFAULT_THREADS     = Runtime.getRuntime().availableProcessors() * 2;
+    static private final int INITIAL_BUFFER_SIZE = 4096;
+    static private final int MAX_HEAD_SIZE       = 8192;
+    static private final int MAX_REQUEST_SIZE    = 1024 * 1024;  /* head and body, buffered whole */
+    static private final int OUTPUT_CHUNK        = 64 * 1024;    /* response bytes held per connection */
+    static private final long IDLE_TIMEOUT       = 1000 * 100; /* same as SO_TIMEOUT of Servletd */
+    static private final long SELECT_TIMEOUT     = 1000;
+    static private final long DRAIN_TIMEOUT      = IDLE_TIMEOUT;
+    static private final byte[] BAD_REQUEST = (
+        "HTTP/1.0 400 Bad Request\r\n" +
+        "Content-Length: 0\r\n" +
+        "Connection: close\r\n" +
+        "\r\n").getBytes();
+    static private final byte[] ENTITY_TOO_LARGE = (
+        "HTTP/1.0 413 Request Entity Too Large\r\n" +
+        "Content-Length: 0\r\n" +
+        "Connection: close\r\n" +
+        "\r\n").getBytes();
+
+    private final Servletd servletd = new Servletd();
+    private int selectors = DEFAULT_SELECTORS;
+    private int threads   = DEFAULT_THREADS;
+    private ExecutorService executor;
+    private EventLoop[] loops;
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private boolean reusePort = false;
+    private volatile boolean running = false;
+
+    public static void usage() {
+        System.err.println("usage: java tabou.http.NioServletd [-p port no] [-n selectors] [-t threads]");
+        System.exit(-1);
+    }
+    public static void main(String[] args) throws Exception{
+        TabouLog.init();
+        int localPort = DEFAULT_PROXY_PORT;  /* port no       */
+        NioServletd nioServletd = new NioServletd();
+        int argi = 0;
+        for (; argi < args.length; argi++) {
+            char[] chars = args[argi].toCharArray();
+            if (chars[0] != '-') {
+                break;
+            }
+            if (chars.length != 2) {
+                System.err.println("invalid option:" + args[argi]);
+                usage();
+            }
+            char c = chars[1];
+            switch (c) {
+            case 'p':
+                localPort = Integer.parseInt(args[++argi]);  /*port no       */
+                break;
+            case 'n':
+                nioServletd.setSelectors(Integer.parseInt(args[++argi]));
+                break;
+            case 't':
+                nioServletd.setThreads(Integer.parseInt(args[++argi]));
+                break;
+            default:
+                System.err.println("invalid option:" + c);
+                usage();
+            }
+        }
+        nioServletd.accrpt(localPort);
+    }
+    public void setSelectors(int selectors){
+        this.selectors = selectors;
+    }
+    public void setThreads(int threads){
+        this.threads = threads;
+    }
+    /**
+     * the servlets and their settings; configure before accrpt().
+     */
+    public Servletd getServletd(){
+        return servletd;
+    }
+    /**
+     * start the selector threads; the first one runs on the calling thread.
+     * with SO_REUSEPORT every selector binds its own listening channel and
+     * the kernel spreads connections, otherwise selector 0 accepts and
+     * hands channels out round robin.
+     */
+    public void accrpt(int localPort) throws IOException,ServletException{
+        servletd.start();
+        ServerSocketChannel probe = ServerSocketChannel.open();
+        try{
+            reusePort = selectors > 1
+                && probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }finally{
+            probe.close();
+        }
+        executor = Executors.newFixedThreadPool(threads);
+        loops = new EventLoop[selectors];
+        for(int i = 0;i < selectors;i++){
+            loops[i] = new EventLoop();
+            if(reusePort || i == 0){
+                loops[i].listen(bind(localPort));
+            }
+        }
+        running = true;
+        Log.info("wait:*."+ localPort  +" ... selectors:" + selectors + " reuseport:" + reusePort);
+        for(int i = 1;i < selectors;i++){
+            Thread thread = new Thread(loops[i],"selector-" + i);
+            thread.start();
+        }
+        loops[0].run();
+    }
+    private ServerSocketChannel bind(int localPort) throws IOException{
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+        if(reusePort){
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT,true);
+        }
+        serverChannel.bind(new InetSocketAddress(localPort));
+        serverChannel.configureBlocking(false);
+        synchronized(serverChannels){
+            serverChannels.add(serverChannel);
+        }
+        return serverChannel;
+    }
+    /**
+     * stop accepting and the selectors, wait for the workers to finish and
+     * destroy the servlets.
+     */
+    public void close() throws IOException{
+        running = false;
+        synchronized(serverChannels){
+            for(ServerSocketChannel serverChannel : serverChannels){
+                serverChannel.close();
+            }
+        }
+        if(loops != null){
+            for(EventLoop loop : loops){
+                loop.selector.wakeup();
+            }
+        }
+        if(executor != null){
+            executor.shutdown();
+            try{
+                if(!executor.awaitTermination(DRAIN_TIMEOUT,TimeUnit.MILLISECONDS)){
+                    Log.warning("drain timeout");
+                    executor.shutdownNow();
+                }
+            }catch(InterruptedException e){
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        servletd.destroy();
+    }
+
+    /**
+     * offset just after the last chunk and trailers of a chunked body,
+     * -1 if it is not buffered whole yet or -2 if it is malformed.
+     */
+    static int chunkedEnd(byte[] b,int from,int to){
+        int i = from;
+        while(true){
+            int eol = i;
+            while(eol < to && b[eol] != '\n'){
+                eol++;
+            }
+            if(eol == to){
+                return -1;
+            }
+            long size = ChunkInputStream.parseSize(b,i,eol);
+            if(size < 0 || size > MAX_REQUEST_SIZE){
+                return -2;
+            }
+            i = eol + 1;
+            if(size == 0){
+                break;
+            }
+            if(size >= to - i){
+                return -1;  /* data and CRLF not buffered yet */
+            }
+            i += (int)size;
+            while(i < to && b[i] != '\n'){  /* CRLF after the data */
+                i++;
+            }
+            if(i >= to){
+                return -1;
+            }
+            i++;
+        }
+        while(true){  /* trailers up to the empty line */
+            int eol = i;
+            while(eol < to && b[eol] != '\n'){
+                eol++;
+            }
+            if(eol == to){
+                return -1;
+            }
+            boolean empty = eol == i || (eol == i + 1 && b[i] == '\r');
+            i = eol + 1;
+            if(empty){
+                return i;
+            }
+        }
+    }
+
+    /**
+     * one selector thread.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        EventLoop() throws IOException{
+            this.selector = Selector.open();
+        }
+        void listen(ServerSocketChannel serverChannel) throws IOException{
+            serverChannel.register(selector,SelectionKey.OP_ACCEPT);
+        }
+        /**
+         * run a task on this selector thread.
+         */
+        void execute(Runnable task){
+            tasks.add(task);
+            selector.wakeup();
+        }
+        @Override
+        public void run(){
+            long lastSweep = System.currentTimeMillis();
+            while(running){
+                try{
+                    selector.select(SELECT_TIMEOUT);
+                    Runnable task;
+                    while((task = tasks.poll()) != null){
+                        task.run();
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while(iterator.hasNext()){
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        handle(key);
+                    }
+                    long now = System.currentTimeMillis();
+                    if(now - lastSweep >= SELECT_TIMEOUT){
+                        sweep(now);
+                        lastSweep = now;
+                    }
+                }catch(IOException e){
+                    Log.log(Level.WARNING,e.toString(),e);
+                }
+            }
+            for(SelectionKey key : selector.keys()){
+                if(key.attachment() instanceof NioConnection){
+                    ((NioConnection)key.attachment()).close();
+                }
+            }
+            try{
+                selector.close();
+            }catch(IOException e){
+                Log.warning(e.toString());
+            }
+        }
+        private void handle(SelectionKey key){
+            if(!key.isValid()){
+                return;
+            }
+            if(key.isAcceptable()){
+                accept((ServerSocketChannel)key.channel());
+                return;
+            }
+            NioConnection connection = (NioConnection)key.attachment();
+            try{
+                if(key.isReadable()){
+                    connection.read();
+                }else if(key.isWritable()){
+                    connection.write();
+                }
+            }catch(IOException e){
+                Log.warning(e.toString());
+                connection.close();
+            }
+        }
+        private void accept(ServerSocketChannel serverChannel){
+            try{
+                final SocketChannel channel = serverChannel.accept();
+                if(channel == null){
+                    return;
+                }
+                Log.info("accept:" + channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY,true);
+                if(reusePort){
+                    register(channel);
+                    return;
+                }
+                final EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(),loops.length)];
+                loop.execute(new Runnable(){
+                    @Override
+                    public void run(){
+                        loop.register(channel);
+                    }
+                });
+            }catch(IOException e){
+                Log.warning(e.toString());
+            }
+        }
+        private void register(SocketChannel channel){
+            NioConnection connection = new NioConnection(this,channel);
+            try{
+                connection.head.setConnection((InetSocketAddress)channel.getLocalAddress(),
+                    (InetSocketAddress)channel.getRemoteAddress());
+                connection.key = channel.register(selector,SelectionKey.OP_READ,connection);
+            }catch(IOException e){
+                Log.warning(e.toString());
+                connection.close();
+            }
+        }
+        /**
+         * close connections idle longer than IDLE_TIMEOUT.
+         */
+        private void sweep(long now){
+            for(SelectionKey key : selector.keys()){
+                Object attachment = key.attachment();
+                if(attachment instanceof NioConnection){
+                    NioConnection connection = (NioConnection)attachment;
+                    if(!connection.dispatched && now - connection.lastActive > IDLE_TIMEOUT){
+                        Log.info("timeout:" + connection.channel.socket().getInetAddress());
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * state of one connection, attached to its SelectionKey.
+     * only touched by the owning selector thread, except the buffer and
+     * head which the worker reads while the key has no interest, and the
+     * fields guarded by the connection's lock.
+     */
+    private class NioConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final HttpHead head = HttpHead.obtain();
+        private SelectionKey key;
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        private int count = 0;
+        private int headLength = -1;
+        private long contentLength = -1;
+        private boolean chunked = false;
+        private int requestEnd = 0;
+        private ByteBuffer output;
+        private boolean last       = true;   /* output ends the response */
+        private boolean keepAlive  = false;
+        private boolean dispatched = false;
+        private long lastActive = System.currentTimeMillis();
+        /* guarded by this */
+        private boolean sending  = false;    /* a worker waits for output to be written */
+        private boolean working  = false;    /* a worker has the head */
+        private boolean closed   = false;
+        private boolean released = false;    /* the head is back in its pool */
+
+        NioConnection(EventLoop loop,SocketChannel channel){
+            this.loop = loop;
+            this.channel = channel;
+        }
+        void read() throws IOException{
+            if(count == buffer.length){
+                int limit = headLength < 0 ? MAX_HEAD_SIZE : MAX_REQUEST_SIZE;
+                if(buffer.length >= limit){
+                    reply(headLength < 0 ? BAD_REQUEST : ENTITY_TOO_LARGE);
+                    return;
+                }
+                buffer = Arrays.copyOf(buffer,Math.min(buffer.length * 2,limit));
+            }
+            int n = channel.read(ByteBuffer.wrap(buffer,count,buffer.length - count));
+            if(n < 0){
+                close();
+                return;
+            }
+            int from = count;
+            count += n;
+            lastActive = System.currentTimeMillis();
+            parse(from);
+        }
+        /**
+         * look for a complete request in the buffer; <code>from</code> is
+         * where the bytes not yet scanned start.
+         */
+        private void parse(int from) throws IOException{
+            if(headLength < 0){
+                if(!hasHeadEnd(buffer,Math.max(from - 3,0),count)){
+                    return;
+                }
+                headLength = head.parse(buffer,0,count);
+                if(headLength < 0){
+                    return;
+                }
+                if(!head.isValid()){
+                    reply(BAD_REQUEST);
+                    return;
+                }
+                chunked = head.isChunked();
+                contentLength = head.getContentLength();
+                if(headLength + contentLength > MAX_REQUEST_SIZE){
+                    reply(ENTITY_TOO_LARGE);
+                    return;
+                }
+            }
+            int requestEnd;
+            if(chunked){
+                requestEnd = chunkedEnd(buffer,headLength,count);
+                if(requestEnd == -2){
+                    reply(BAD_REQUEST);
+                    return;
+                }
+            }else{
+                requestEnd = headLength + (int)Math.max(contentLength,0);
+                if(requestEnd > count){
+                    requestEnd = -1;
+                }
+            }
+            if(requestEnd >= 0){
+                dispatch(requestEnd);
+            }
+        }
+        /**
+         * run the servlet on a worker, the response going back to the
+         * selector through a ResponseStream.
+         */
+        private void dispatch(final int requestEnd){
+            dispatched = true;
+            this.requestEnd = requestEnd;
+            key.interestOps(0);
+            synchronized(this){
+                working = true;
+            }
+            final ResponseStream out = new ResponseStream();
+            executor.execute(new Runnable(){
+                @Override
+                public void run(){
+                    try{
+                        servletd.request(head,
+                            new ServletInputStreamImpl(new ByteArrayInputStream(buffer,headLength,requestEnd - headLength)),
+                            new ServletOutputStreamImpl(out),true,new Servletd.Completion(){
+                                @Override
+                                public void completed(boolean reuse){
+                                    out.finish(reuse);
+                                }
+                            });
+                    }catch(Exception e){
+                        Log.log(Level.WARNING,e.toString(),e);
+                        out.finish(false);
+                    }
+                }
+            });
+        }
+        void write() throws IOException{
+            if(!key.isValid()){
+                return;
+            }
+            channel.write(output);
+            lastActive = System.currentTimeMillis();
+            if(output.hasRemaining()){
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if(!last){
+                key.interestOps(0);
+                synchronized(this){
+                    sending = false;
+                    notifyAll();
+                }
+                return;
+            }
+            if(!keepAlive){
+                close();
+                return;
+            }
+            next();
+        }
+        /**
+         * drop the request just answered and start on the next one,
+         * which may already be in the buffer (pipelining).
+         */
+        private void next() throws IOException{
+            count -= requestEnd;
+            System.arraycopy(buffer,requestEnd,buffer,0,count);
+            headLength    = -1;
+            contentLength = -1;
+            chunked       = false;
+            keepAlive     = false;
+            requestEnd    = 0;
+            dispatched    = false;
+            key.interestOps(SelectionKey.OP_READ);
+            if(count > 0){
+                parse(0);
+            }
+        }
+        private void reply(byte[] response) throws IOException{
+            dispatched = true;
+            last       = true;
+            keepAlive  = false;
+            output = ByteBuffer.wrap(response);
+            write();
+        }
+        void close(){
+            if(key != null){
+                if(!key.isValid()){
+                    return;  /* already closed */
+                }
+                key.cancel();
+            }
+            try{
+                channel.close();
+            }catch(IOException e){
+                Log.warning(e.toString());
+            }
+            synchronized(this){
+                closed = true;
+                notifyAll();  /* a worker waiting to send gives up */
+            }
+            releaseHead();
+            Log.info("close");
+        }
+        /**
+         * give the head back once the connection is closed and no worker
+         * is reading it; whichever of the two comes last does it.
+         */
+        private synchronized void releaseHead(){
+            if(closed && !working && !released){
+                released = true;
+                head.release();
+            }
+        }
+        /**
+         * the response as the servlet writes it, handed to the selector a
+         * chunk at a time: the worker waits while a chunk is sent, so a
+         * response holds at most OUTPUT_CHUNK bytes whatever its length.
+         * flush() sends nothing; bytes go when a chunk is full or the
+         * response is complete.
+         */
+        private class ResponseStream extends OutputStream {
+            private final byte[] chunk = new byte[OUTPUT_CHUNK];
+            private int length = 0;
+
+            @Override
+            public void write(int b) throws IOException{
+                if(length == chunk.length){
+                    send();
+                }
+                chunk[length++] = (byte)b;
+            }
+            @Override
+            public void write(byte[] b,int off,int len) throws IOException{
+                while(len > 0){
+                    if(length == chunk.length){
+                        send();
+                    }
+                    int n = Math.min(len,chunk.length - length);
+                    System.arraycopy(b,off,chunk,length,n);
+                    length += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+            /**
+             * hand the full chunk to the selector and wait until it is written.
+             */
+            private void send() throws IOException{
+                NioConnection connection = NioConnection.this;
+                synchronized(connection){
+                    connection.sending = true;
+                }
+                handOver(false,false);
+                synchronized(connection){
+                    try{
+                        while(connection.sending && !connection.closed){
+                            connection.wait();
+                        }
+                    }catch(InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    if(connection.closed){
+                        throw new IOException("connection closed");
+                    }
+                }
+                length = 0;
+            }
+            /**
+             * the response is complete: the worker is done with the head,
+             * and the selector sends the rest, then reads the next request
+             * or closes.
+             */
+            void finish(boolean keepAlive){
+                synchronized(NioConnection.this){
+                    working = false;
+                }
+                releaseHead();
+                handOver(true,keepAlive);
+            }
+            private void handOver(final boolean last,final boolean keepAlive){
+                final ByteBuffer buffer = ByteBuffer.wrap(chunk,0,length);
+                loop.execute(new Runnable(){
+                    @Override
+                    public void run(){
+                        output = buffer;
+                        NioConnection.this.last = last;
+                        NioConnection.this.keepAlive = keepAlive;
+                        try{
+                            NioConnection.this.write();
+                        }catch(IOException e){
+                            Log.warning(e.toString());
+                            NioConnection.this.close();
+                        }
+                    }
+                });
+            }
+        }
+    }
+    /**
+     * is there an empty line (the end of a head) in b[from,to)?
+     * a cheap scan before the head is parsed.
+     */
+    static boolean hasHeadEnd(byte[] b,int from,int to){
+        for(int i = Math.max(from,1);i < to;i++){
+            if(b[i] == '\n' && (b[i - 1] == '\n' || (b[i - 1] == '\r' && i >= 2 && b[i - 2] == '\n'))){
+                return true;
+            }
+        }
+        return false;
+    }
+}
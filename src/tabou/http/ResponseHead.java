@@ -0,0 +1,111 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * bytes of a response head.
+ * header names, and whole lines of headers that take few values
+ * ("Content-Type: text/html" CRLF), are encoded once and kept, so a head
+ * is mostly copied from shared arrays. values of other headers (ETag,
+ * Location, Set-Cookie...) change with every response and are never kept.
+ */
+public class ResponseHead {
+    static private final int MAX_NAMES = 256;
+    static private final int MAX_LINES = 32;  /* per name */
+    static private final int MAX_LINE_VALUE = 128;
+    static private final ConcurrentHashMap<String,byte[]> names = new ConcurrentHashMap<String,byte[]>();
+    static private final ConcurrentHashMap<String,ConcurrentHashMap<String,byte[]>> lines =
+        new ConcurrentHashMap<String,ConcurrentHashMap<String,byte[]>>();
+    static{
+        for(String name : new String[]{"Content-Type","Content-Encoding","Content-Language",
+                "Transfer-Encoding","Connection","Server","Cache-Control","Vary","Accept-Ranges"}){
+            lines.put(name,new ConcurrentHashMap<String,byte[]>());
+        }
+    }
+    static public final byte[] CRLF = {'\r','\n'};
+    static public final byte[] CONTENT_LENGTH = name("Content-Length");
+    static public final byte[] TRANSFER_ENCODING_CHUNKED = line("Transfer-Encoding","chunked");
+    static public final byte[] CONNECTION_CLOSE = line("Connection","close");
+    static public final byte[] CONNECTION_KEEP_ALIVE = line("Connection","keep-alive");
+    static{
+        for(String name : new String[]{"Content-Type","Content-Length","Date","Server",
+                "Connection","Last-Modified","ETag","Location","Set-Cookie","Cache-Control"}){
+            name(name);
+        }
+    }
+    private byte[] bytes = new byte[512];
+    private int count = 0;
+
+    /**
+     * "name: " of a header, shared.
+     */
+    static public byte[] name(String name){
+        byte[] b = names.get(name);
+        if(b != null){
+            return b;
+        }
+        b = (name + ": ").getBytes(StandardCharsets.ISO_8859_1);
+        if(names.size() < MAX_NAMES){
+            names.putIfAbsent(name,b);
+        }
+        return b;
+    }
+    /**
+     * "name: value" CRLF of a header, shared if the header is one of the
+     * few kept, the value is short and the name has not seen too many values.
+     */
+    static public byte[] line(String name,String value){
+        ConcurrentHashMap<String,byte[]> values = lines.get(name);
+        if(values == null){
+            return (name + ": " + value + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+        byte[] b = values.get(value);
+        if(b != null){
+            return b;
+        }
+        b = (name + ": " + value + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        if(value.length() <= MAX_LINE_VALUE && values.size() < MAX_LINES){
+            values.putIfAbsent(value,b);
+        }
+        return b;
+    }
+    public ResponseHead append(byte[] b){
+        ensure(b.length);
+        System.arraycopy(b,0,bytes,count,b.length);
+        count += b.length;
+        return this;
+    }
+    public ResponseHead header(String name,String value){
+        return append(line(name,value));
+    }
+    /**
+     * "name: value" CRLF with a number (0 or more), without making a string.
+     */
+    public ResponseHead header(byte[] name,long value){
+        append(name);
+        ensure(20 + CRLF.length);
+        int start = count;
+        do{
+            bytes[count++] = (byte)('0' + value % 10);
+            value /= 10;
+        }while(value != 0);
+        for(int i = start,j = count - 1;i < j;i++,j--){
+            byte t = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = t;
+        }
+        return append(CRLF);
+    }
+    public byte[] toByteArray(){
+        return Arrays.copyOf(bytes,count);
+    }
+    private void ensure(int n){
+        if(count + n > bytes.length){
+            bytes = Arrays.copyOf(bytes,Math.max(bytes.length * 2,count + n));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.util.Arrays;
+
+/**
+ * headers set by the servlet on one response, in the order they were set.
+ * a response belongs to one thread at a time, so nothing is synchronized.
+ * Content-Type, Connection and Date have slots of their own and are
+ * recognised by length before any comparison; the other headers are kept
+ * in parallel arrays and matched without regard to case, without making a
+ * lower case copy of the name. Content-Length is kept by the response.
+ */
+public class ResponseHeaders {
+    static private final int INITIAL_HEADERS = 16;
+    static private final int CONTENT_TYPE = 0;
+    static private final int CONNECTION   = 1;
+    static private final int DATE         = 2;
+    static private final String[] SLOT_NAMES = {"Content-Type","Connection","Date"};
+    private final String[] slots = new String[SLOT_NAMES.length];
+    private String[] names  = new String[INITIAL_HEADERS];
+    private String[] values = new String[INITIAL_HEADERS];
+    private int count = 0;
+
+    /**
+     * set the header, replacing its values; a null value removes it.
+     */
+    public void set(String name,String value){
+        int slot = slot(name);
+        if(slot >= 0){
+            slots[slot] = value;
+            return;
+        }
+        int i = indexOf(name,0);
+        if(i < 0){
+            if(value != null){
+                append(name,value);
+            }
+            return;
+        }
+        if(value == null){
+            remove(i);
+        }else{
+            values[i++] = value;
+        }
+        while((i = indexOf(name,i)) >= 0){
+            remove(i);
+        }
+    }
+    /**
+     * add a value to the header; the slot headers have one value only.
+     */
+    public void add(String name,String value){
+        int slot = slot(name);
+        if(slot >= 0){
+            slots[slot] = value;
+            return;
+        }
+        append(name,value);
+    }
+    /**
+     * first value of the header, or null.
+     */
+    public String get(String name){
+        int slot = slot(name);
+        if(slot >= 0){
+            return slots[slot];
+        }
+        int i = indexOf(name,0);
+        return i < 0 ? null : values[i];
+    }
+    public boolean contains(String name){
+        return get(name) != null;
+    }
+    public String getContentType(){
+        return slots[CONTENT_TYPE];
+    }
+    public void setContentType(String contentType){
+        slots[CONTENT_TYPE] = contentType;
+    }
+    public String getConnection(){
+        return slots[CONNECTION];
+    }
+    public String getDate(){
+        return slots[DATE];
+    }
+    /**
+     * number of headers other than the slot headers.
+     */
+    public int size(){
+        return count;
+    }
+    /**
+     * name of the i-th header other than the slot headers, in the order set.
+     */
+    public String getName(int i){
+        return names[i];
+    }
+    public String getValue(int i){
+        return values[i];
+    }
+    public void clear(){
+        Arrays.fill(slots,null);
+        Arrays.fill(names,0,count,null);
+        Arrays.fill(values,0,count,null);
+        count = 0;
+    }
+    private void append(String name,String value){
+        if(count == names.length){
+            names  = Arrays.copyOf(names,count * 2);
+            values = Arrays.copyOf(values,count * 2);
+        }
+        names[count]  = name;
+        values[count] = value;
+        count++;
+    }
+    private void remove(int i){
+        count--;
+        System.arraycopy(names,i + 1,names,i,count - i);
+        System.arraycopy(values,i + 1,values,i,count - i);
+        names[count] = values[count] = null;
+    }
+    private int indexOf(String name,int from){
+        for(int i = from;i < count;i++){
+            if(names[i].equalsIgnoreCase(name)){
+                return i;
+            }
+        }
+        return -1;
+    }
+    /**
+     * slot of the header, told apart by length first.
+     */
+    private static int slot(String name){
+        int slot;
+        switch(name.length()){
+        case 12:
+            slot = CONTENT_TYPE;
+            break;
+        case 10:
+            slot = CONNECTION;
+            break;
+        case 4:
+            slot = DATE;
+            break;
+        default:
+            return -1;
+        }
+        return SLOT_NAMES[slot].equalsIgnoreCase(name) ? slot : -1;
+    }
+}
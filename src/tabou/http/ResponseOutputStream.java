@@ -0,0 +1,43 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.io.IOException;
+import javax.servlet.ServletOutputStream;
+
+/**
+ * stream returned by getOutputStream().
+ * bytes go into the buffer of the response, which is committed when the
+ * buffer overflows or the stream is flushed.
+ */
+public class ResponseOutputStream extends ServletOutputStream {
+    private final ServletResponseImpl response;
+
+    public ResponseOutputStream(ServletResponseImpl response){
+        this.response = response;
+    }
+    @Override
+    public void write(int b) throws IOException{
+        response.write(b);
+    }
+    @Override
+    public void write(byte[] b,int off,int len) throws IOException{
+        response.write(b,off,len);
+    }
+    /**
+     * commit the response and send what is buffered.
+     */
+    @Override
+    public void flush() throws IOException{
+        if(!response.suspended){
+            response.flushBuffer();
+        }
+    }
+    /**
+     * same as flush; the connection is not closed.
+     */
+    @Override
+    public void close() throws IOException{
+        flush();
+    }
+}
@@ -0,0 +1,281 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * writer returned by getWriter().
+ * characters are encoded straight into the buffer of the response, with
+ * loops of their own for UTF-8, ISO-8859-1 and US-ASCII; runs of ASCII are
+ * copied a byte per char. other charsets go through Charset.encode.
+ * nothing is held back except half of a surrogate pair, so flushing the
+ * writer into the buffer costs nothing. one writer serves every response
+ * of a ServletResponseImpl.
+ * as for any PrintWriter, an IOException sets the error flag seen by
+ * checkError().
+ */
+public class ResponseWriter extends PrintWriter {
+    static private final String LINE_SEPARATOR = System.lineSeparator();
+    static private final int UTF_8      = 0;
+    static private final int ISO_8859_1 = 1;
+    static private final int US_ASCII   = 2;
+    static private final int OTHER      = 3;
+    private final ServletResponseImpl response;
+    private Charset charset;
+    private int coding;
+    private int limit;          /* chars below it are one byte */
+    private char highSurrogate = 0;
+    private boolean closed = false;
+
+    public ResponseWriter(ServletResponseImpl response,Charset charset){
+        super(Writer.nullWriter());
+        this.response = response;
+        setCharset(charset);
+    }
+    /**
+     * make the writer ready for the next response.
+     */
+    public void recycle(Charset charset){
+        setCharset(charset);
+        highSurrogate = 0;
+        closed = false;
+        clearError();
+    }
+    private void setCharset(Charset charset){
+        this.charset = charset;
+        if(StandardCharsets.UTF_8.equals(charset)){
+            coding = UTF_8;
+            limit = 0x80;
+        }else if(StandardCharsets.ISO_8859_1.equals(charset)){
+            coding = ISO_8859_1;
+            limit = 0x100;
+        }else if(StandardCharsets.US_ASCII.equals(charset)){
+            coding = US_ASCII;
+            limit = 0x80;
+        }else{
+            coding = OTHER;
+            limit = 0;
+        }
+    }
+    public Charset getCharset(){
+        return charset;
+    }
+    @Override
+    public void write(int c){
+        if(closed){
+            setError();
+            return;
+        }
+        try{
+            if(c < limit && highSurrogate == 0){
+                if(response.bufferCount == response.buffer.length){
+                    response.writeBuffer();
+                }
+                response.buffer[response.bufferCount++] = (byte)c;
+                response.contentCount++;
+            }else if(coding == OTHER){
+                encode(CharBuffer.wrap(new char[]{(char)c}));
+            }else{
+                put((char)c);
+            }
+        }catch(IOException e){
+            setError();
+        }
+    }
+    @Override
+    public void write(char[] buf,int off,int len){
+        if(closed){
+            setError();
+            return;
+        }
+        try{
+            if(coding == OTHER){
+                encode(CharBuffer.wrap(buf,off,len));
+                return;
+            }
+            int end = off + len;
+            while(off < end){
+                byte[] b = response.buffer;
+                int count = response.bufferCount;
+                int n = Math.min(end - off,b.length - count);
+                int i = 0;
+                if(highSurrogate == 0){
+                    while(i < n && buf[off + i] < limit){
+                        b[count + i] = (byte)buf[off + i];
+                        i++;
+                    }
+                }
+                response.bufferCount += i;
+                response.contentCount += i;
+                off += i;
+                if(off == end){
+                    break;
+                }
+                if(response.bufferCount == b.length){
+                    response.writeBuffer();
+                }else{
+                    put(buf[off++]);
+                }
+            }
+        }catch(IOException e){
+            setError();
+        }
+    }
+    @Override
+    public void write(String s,int off,int len){
+        if(closed){
+            setError();
+            return;
+        }
+        try{
+            if(coding == OTHER){
+                encode(CharBuffer.wrap(s,off,off + len));
+                return;
+            }
+            int end = off + len;
+            while(off < end){
+                byte[] b = response.buffer;
+                int count = response.bufferCount;
+                int n = Math.min(end - off,b.length - count);
+                int i = 0;
+                if(highSurrogate == 0){
+                    char c;
+                    while(i < n && (c = s.charAt(off + i)) < limit){
+                        b[count + i] = (byte)c;
+                        i++;
+                    }
+                }
+                response.bufferCount += i;
+                response.contentCount += i;
+                off += i;
+                if(off == end){
+                    break;
+                }
+                if(response.bufferCount == b.length){
+                    response.writeBuffer();
+                }else{
+                    put(s.charAt(off++));
+                }
+            }
+        }catch(IOException e){
+            setError();
+        }
+    }
+    @Override
+    public void println(){
+        write(LINE_SEPARATOR,0,LINE_SEPARATOR.length());
+    }
+    /**
+     * commit the response and send what is buffered, unless the response
+     * only wants the characters in its buffer.
+     */
+    @Override
+    public void flush(){
+        if(closed || response.suspended){
+            return;
+        }
+        try{
+            response.flushBuffer();
+        }catch(IOException e){
+            setError();
+        }
+    }
+    /**
+     * flush; the connection is not closed.
+     */
+    @Override
+    public void close(){
+        if(closed){
+            return;
+        }
+        flush();
+        closed = true;
+    }
+    /**
+     * one char that is not written as a single byte.
+     */
+    private void put(char c) throws IOException{
+        if(highSurrogate != 0){
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if(Character.isLowSurrogate(c) && coding == UTF_8){
+                int cp = Character.toCodePoint(high,c);
+                byte[] b = reserve(4);
+                int i = response.bufferCount;
+                b[i]     = (byte)(0xf0 | (cp >> 18));
+                b[i + 1] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                b[i + 2] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                b[i + 3] = (byte)(0x80 | (cp & 0x3f));
+                advance(4);
+                return;
+            }
+            putByte('?');
+            if(Character.isLowSurrogate(c)){
+                return;  /* the pair became one '?' */
+            }
+        }
+        if(c < limit){
+            putByte(c);
+        }else if(Character.isHighSurrogate(c)){
+            highSurrogate = c;
+        }else if(coding != UTF_8 || Character.isLowSurrogate(c)){
+            putByte('?');
+        }else if(c < 0x800){
+            byte[] b = reserve(2);
+            int i = response.bufferCount;
+            b[i]     = (byte)(0xc0 | (c >> 6));
+            b[i + 1] = (byte)(0x80 | (c & 0x3f));
+            advance(2);
+        }else{
+            byte[] b = reserve(3);
+            int i = response.bufferCount;
+            b[i]     = (byte)(0xe0 | (c >> 12));
+            b[i + 1] = (byte)(0x80 | ((c >> 6) & 0x3f));
+            b[i + 2] = (byte)(0x80 | (c & 0x3f));
+            advance(3);
+        }
+    }
+    private void putByte(int c) throws IOException{
+        reserve(1)[response.bufferCount] = (byte)c;
+        advance(1);
+    }
+    /**
+     * the buffer of the response, sent first if fewer than n bytes are free.
+     */
+    private byte[] reserve(int n) throws IOException{
+        if(response.buffer.length - response.bufferCount < n){
+            response.writeBuffer();
+        }
+        return response.buffer;
+    }
+    private void advance(int n){
+        response.bufferCount += n;
+        response.contentCount += n;
+    }
+    /**
+     * encode with the Charset; a high surrogate at the end waits for the
+     * low surrogate of the next write.
+     */
+    private void encode(CharBuffer chars) throws IOException{
+        if(highSurrogate != 0){
+            CharBuffer joined = CharBuffer.allocate(chars.remaining() + 1);
+            joined.put(highSurrogate).put(chars).flip();
+            chars = joined;
+            highSurrogate = 0;
+        }
+        int last = chars.limit() - 1;
+        if(last >= chars.position() && Character.isHighSurrogate(chars.get(last))){
+            highSurrogate = chars.get(last);
+            chars.limit(last);
+        }
+        ByteBuffer bytes = charset.encode(chars);
+        response.write(bytes.array(),bytes.arrayOffset() + bytes.position(),bytes.remaining());
+    }
+}
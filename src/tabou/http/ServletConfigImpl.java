@@ -0,0 +1,41 @@
+package tabou.http;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+public class ServletConfigImpl implements ServletConfig {
+    private final String servletName;
+    private final ServletContext servletContext;
+    private final Map<String,String> initParameters;
+
+    public ServletConfigImpl(String servletName, ServletContext servletContext, Map<String,String> initParameters) {
+        this.servletName = servletName;
+        this.servletContext = servletContext;
+        this.initParameters = initParameters == null
+            ? Collections.<String,String>emptyMap() : new HashMap<String,String>(initParameters);
+    }
+
+    @Override
+    public String getServletName() {
+        return servletName;
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+        return servletContext;
+    }
+
+    @Override
+    public String getInitParameter(String name) {
+        return initParameters.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getInitParameterNames() {
+        return Collections.enumeration(initParameters.keySet());
+    }
+}
@@ -1,21 +1,136 @@
-package tabou.http;;
+package tabou.http;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.Servlet;
 import javax.servlet.ServletContext;
+import javax.servlet.ServletContextAttributeEvent;
+import javax.servlet.ServletContextAttributeListener;
+import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.ServletException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.EventListener;
 import java.util.Locale;
+import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * the one context of the server, shared by all requests.
+ * attributes live in a ConcurrentHashMap, so servlets can share caches
+ * and pools through it without locking; init parameters are set at
+ * startup.
+ */
 public class ServletContextImpl implements ServletContext {
+    private Path documentRoot = null;
+    private final ConcurrentHashMap<String,Object> attributes = new ConcurrentHashMap<String,Object>();
+    private final ConcurrentHashMap<String,String> initParameters = new ConcurrentHashMap<String,String>();
+    private final CopyOnWriteArrayList<ServletContextAttributeListener> attributeListeners =
+        new CopyOnWriteArrayList<ServletContextAttributeListener>();
+    private final CopyOnWriteArrayList<ServletContextListener> contextListeners =
+        new CopyOnWriteArrayList<ServletContextListener>();
+    private boolean initialized = false;
+
+    public ServletContextImpl() {
+    }
+    /**
+     * @param documentRoot directory of the resources, or null
+     */
+    public ServletContextImpl(Path documentRoot) {
+        this.documentRoot = absolute(documentRoot);
+    }
+    /**
+     * @param documentRoot directory of the resources, or null
+     */
+    public void setDocumentRoot(Path documentRoot) {
+        this.documentRoot = absolute(documentRoot);
+    }
+    static private Path absolute(Path path) {
+        return path == null ? null : path.toAbsolutePath().normalize();
+    }
+    public Path getDocumentRoot() {
+        return documentRoot;
+    }
+    public void setInitParameter(String name, String value) {
+        initParameters.put(name, value);
+    }
+    /**
+     * read init parameters from a properties file (UTF-8).
+     */
+    public void loadInitParameters(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            initParameters.put(name, properties.getProperty(name));
+        }
+    }
+    /**
+     * register a ServletContextAttributeListener and/or ServletContextListener.
+     */
+    public void addListener(EventListener listener) {
+        if (listener instanceof ServletContextAttributeListener) {
+            attributeListeners.add((ServletContextAttributeListener) listener);
+        }
+        if (listener instanceof ServletContextListener) {
+            contextListeners.add((ServletContextListener) listener);
+        }
+    }
+    /**
+     * tell the ServletContextListeners that the server starts; only once.
+     */
+    public synchronized void contextInitialized() {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+        ServletContextEvent event = new ServletContextEvent(this);
+        for (ServletContextListener listener : contextListeners) {
+            listener.contextInitialized(event);
+        }
+    }
+    /**
+     * tell the ServletContextListeners that the server stops, in reverse order.
+     */
+    public synchronized void contextDestroyed() {
+        if (!initialized) {
+            return;
+        }
+        initialized = false;
+        ServletContextEvent event = new ServletContextEvent(this);
+        for (int i = contextListeners.size() - 1; i >= 0; i--) {
+            contextListeners.get(i).contextDestroyed(event);
+        }
+    }
+    /**
+     * file of a resource path ("/a/b.html") under the document root.
+     *
+     * @return the file, or null if there is no document root or the path
+     *  leads out of it
+     */
+    public Path getResourceFile(String path) {
+        if (documentRoot == null || path == null || !path.startsWith("/")) {
+            return null;
+        }
+        Path file = documentRoot.resolve(path.substring(1)).normalize();
+        if (!file.startsWith(documentRoot)) {
+            return null;
+        }
+        return file;
+    }
 
     @Override
     public ServletContext getContext(String uripath) {
@@ -34,22 +149,48 @@ public class ServletContextImpl implements ServletContext {
 
     @Override
     public String getMimeType(String file) {
-        return null;
+        return MimeTypes.get(file);
     }
 
     @Override
     public Set<String> getResourcePaths(String path) {
-        return null;
+        Path directory = getResourceFile(path);
+        if (directory == null || !Files.isDirectory(directory)) {
+            return null;
+        }
+        String prefix = path.endsWith("/") ? path : path + "/";
+        Set<String> paths = new TreeSet<String>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = prefix + entry.getFileName();
+                paths.add(Files.isDirectory(entry) ? name + "/" : name);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return paths;
     }
 
     @Override
     public URL getResource(String path) throws MalformedURLException {
-        return null;
+        Path file = getResourceFile(path);
+        if (file == null || !Files.exists(file)) {
+            return null;
+        }
+        return file.toUri().toURL();
     }
 
     @Override
     public InputStream getResourceAsStream(String path) {
-        return null;
+        Path file = getResourceFile(path);
+        if (file == null || !Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            return Files.newInputStream(file);
+        } catch (IOException e) {
+            return null;
+        }
     }
 
     @Override
@@ -95,7 +236,8 @@ public class ServletContextImpl implements ServletContext {
 
     @Override
     public String getRealPath(String path) {
-        return null;
+        Path file = getResourceFile(path);
+        return file == null ? null : file.toString();
     }
 
     @Override
@@ -105,30 +247,63 @@ public class ServletContextImpl implements ServletContext {
 
     @Override
     public String getInitParameter(String name) {
-        return null;
+        return initParameters.get(name);
     }
 
     @Override
     public Enumeration<String> getInitParameterNames() {
-        return null;
+        return Collections.enumeration(initParameters.keySet());
     }
 
     @Override
     public Object getAttribute(String name) {
-        return null;
+        return attributes.get(name);
     }
 
     @Override
     public Enumeration<String> getAttributeNames() {
-        return null;
+        return Collections.enumeration(attributes.keySet());
     }
 
+    /**
+     * a null value removes the attribute.
+     */
     @Override
     public void setAttribute(String name, Object object) {
+        if (name == null) {
+            throw new IllegalArgumentException("attribute name is null");
+        }
+        if (object == null) {
+            removeAttribute(name);
+            return;
+        }
+        Object old = attributes.put(name, object);
+        if (attributeListeners.isEmpty()) {
+            return;
+        }
+        if (old == null) {
+            ServletContextAttributeEvent event = new ServletContextAttributeEvent(this, name, object);
+            for (ServletContextAttributeListener listener : attributeListeners) {
+                listener.attributeAdded(event);
+            }
+        } else {
+            ServletContextAttributeEvent event = new ServletContextAttributeEvent(this, name, old);
+            for (ServletContextAttributeListener listener : attributeListeners) {
+                listener.attributeReplaced(event);
+            }
+        }
     }
 
     @Override
     public void removeAttribute(String name) {
+        Object old = attributes.remove(name);
+        if (old == null || attributeListeners.isEmpty()) {
+            return;
+        }
+        ServletContextAttributeEvent event = new ServletContextAttributeEvent(this, name, old);
+        for (ServletContextAttributeListener listener : attributeListeners) {
+            listener.attributeRemoved(event);
+        }
     }
 
     @Override
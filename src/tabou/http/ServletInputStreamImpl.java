@@ -5,14 +5,77 @@ import java.io.InputStream;
 import java.io.ByteArrayOutputStream;
 import javax.servlet.ServletInputStream;
 
+/**
+ * the bytes of a connection after the request heads.
+ * reads go straight to the stream under it, a block at a time.
+ */
 public class ServletInputStreamImpl extends ServletInputStream {
     private final InputStream input;
+    private long count = 0;
     public ServletInputStreamImpl(final InputStream input) {
         this.input = input;
     }
     @Override
     public int read() throws IOException {
-        return input.read();
+        int c = input.read();
+        if (c >= 0) {
+            count++;
+        }
+        return c;
+    }
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = input.read(b, off, len);
+        if (n > 0) {
+            count += n;
+        }
+        return n;
+    }
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = input.skip(n);
+        if (skipped > 0) {
+            count += skipped;
+        }
+        return skipped;
+    }
+    /**
+     * bytes that can be read without blocking, from the buffer of the
+     * connection and the socket.
+     */
+    @Override
+    public int available() throws IOException {
+        return input.available();
+    }
+    /**
+     * read up to and including '\n', at most <code>len</code> bytes.
+     *
+     * @return number of bytes read, or -1 at the end of the stream
+     */
+    @Override
+    public int readLine(byte[] b, int off, int len) throws IOException {
+        if (len <= 0) {
+            return 0;
+        }
+        int i = 0;
+        while (i < len) {
+            int c = input.read();
+            if (c < 0) {
+                break;
+            }
+            b[off + i++] = (byte) c;
+            if (c == '\n') {
+                break;
+            }
+        }
+        count += i;
+        return i == 0 ? -1 : i;
+    }
+    /**
+     * number of bytes read from this stream so far.
+     */
+    public long getByteCount() {
+        return count;
     }
     /**
      * read line
@@ -1,17 +1,97 @@
 package tabou.http;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import javax.servlet.ServletOutputStream;
 
 public class ServletOutputStreamImpl extends ServletOutputStream {
     private OutputStream out;
+    private GatheringByteChannel channel;
+    private long count = 0;
     public ServletOutputStreamImpl(OutputStream out) {
+        this(out, null);
+    }
+    /**
+     * @param channel the channel under <code>out</code>, or null
+     */
+    public ServletOutputStreamImpl(OutputStream out, GatheringByteChannel channel) {
         this.out = out;
+        this.channel = channel;
     }
     @Override
     public void write(int b) throws IOException {
         out.write(b);
+        count++;
+    }
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+    }
+    /**
+     * number of bytes written to this stream so far.
+     */
+    public long getByteCount() {
+        return count;
+    }
+    /**
+     * write the buffers with one gathering write when there is a channel,
+     * otherwise copy them together and write once.
+     */
+    public void write(ByteBuffer... buffers) throws IOException {
+        long length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        count += length;
+        if (channel != null) {
+            while (length > 0) {
+                length -= channel.write(buffers);
+            }
+            return;
+        }
+        byte[] bytes = new byte[(int) length];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int n = buffer.remaining();
+            buffer.get(bytes, offset, n);
+            offset += n;
+        }
+        out.write(bytes, 0, offset);
+    }
+    /**
+     * write <code>count</code> bytes of <code>file</code> from <code>position</code>,
+     * with FileChannel.transferTo (sendfile) when there is a channel.
+     */
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        this.count += count;
+        if (channel != null) {
+            while (count > 0) {
+                long n = file.transferTo(position, count, channel);
+                if (n <= 0 && position >= file.size()) {
+                    throw new EOFException("file truncated");
+                }
+                position += n;
+                count -= n;
+            }
+            return;
+        }
+        byte[] bytes = new byte[(int) Math.min(count, 65536)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (count > 0) {
+            buffer.clear().limit((int) Math.min(count, bytes.length));
+            int n = file.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("file truncated");
+            }
+            out.write(bytes, 0, n);
+            position += n;
+            count -= n;
+        }
     }
     @Override
     public void flush() throws IOException {
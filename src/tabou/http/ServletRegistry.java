@@ -0,0 +1,210 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import static tabou.log.TabouLog.Log;
+
+/**
+ * servlets of a context and the URL patterns mapped to them.
+ * patterns are those of the servlet specification: exact ("/a/b"),
+ * prefix ("/a/*"), extension ("*.jsp"), default ("/") and the context
+ * root (""), which matches "/" alone; an exact match wins, then the
+ * longest prefix, then the extension, then the default.
+ * the patterns are compiled into a trie of path segments, so a lookup
+ * walks the path once.
+ * servlets and mappings are added before {@link #init()}; after it the
+ * registry is only read and needs no locking.
+ */
+public class ServletRegistry {
+    private final ServletContextImpl context;
+    private final Map<String,Registration> servlets = new LinkedHashMap<String,Registration>();
+    private final Node root = new Node();
+    private final Map<String,Registration> extensions = new HashMap<String,Registration>();
+    private Registration defaultServlet = null;
+    private boolean initialized = false;
+
+    /**
+     * a servlet under its name.
+     */
+    static private class Registration {
+        final String name;
+        final Servlet servlet;
+        final Map<String,String> initParameters;
+        Registration(String name,Servlet servlet,Map<String,String> initParameters){
+            this.name = name;
+            this.servlet = servlet;
+            this.initParameters = initParameters;
+        }
+    }
+    /**
+     * a path segment of the trie.
+     */
+    static private class Node {
+        final Map<String,Node> children = new HashMap<String,Node>();
+        Registration exact = null;   /* the path up to here */
+        Registration prefix = null;  /* the path up to here + "/*" */
+    }
+    /**
+     * the servlet for a path, with the path split into servlet path and
+     * path info.
+     */
+    static public class Match {
+        public final Servlet servlet;
+        public final String servletPath;
+        public final String pathInfo;
+        Match(Servlet servlet,String servletPath,String pathInfo){
+            this.servlet = servlet;
+            this.servletPath = servletPath;
+            this.pathInfo = pathInfo;
+        }
+    }
+
+    public ServletRegistry(ServletContextImpl context){
+        this.context = context;
+    }
+    public ServletContextImpl getServletContext(){
+        return context;
+    }
+    public void addServlet(String name,Servlet servlet){
+        addServlet(name,servlet,null);
+    }
+    public void addServlet(String name,Servlet servlet,Map<String,String> initParameters){
+        if(initialized){
+            throw new IllegalStateException("registry already initialized");
+        }
+        servlets.put(name,new Registration(name,servlet,initParameters));
+    }
+    /**
+     * map a URL pattern to the servlet of <code>name</code>.
+     */
+    public void addMapping(String pattern,String name){
+        if(initialized){
+            throw new IllegalStateException("registry already initialized");
+        }
+        Registration registration = servlets.get(name);
+        if(registration == null){
+            throw new IllegalArgumentException("no servlet:" + name);
+        }
+        if(pattern.equals("/")){
+            defaultServlet = registration;
+        }else if(pattern.startsWith("*.")){
+            extensions.put(pattern.substring(2),registration);
+        }else if(pattern.equals("/*")){
+            root.prefix = registration;
+        }else if(pattern.startsWith("/") && pattern.endsWith("/*")){
+            node(pattern.substring(0,pattern.length() - 2)).prefix = registration;
+        }else if(pattern.startsWith("/")){
+            node(pattern).exact = registration;
+        }else if(pattern.isEmpty()){
+            root.exact = registration;
+        }else{
+            throw new IllegalArgumentException("invalid url-pattern:" + pattern);
+        }
+    }
+    /**
+     * is a servlet mapped to "/"?
+     */
+    public boolean hasDefaultServlet(){
+        return defaultServlet != null;
+    }
+    private Node node(String path){
+        Node node = root;
+        int start = 1;
+        while(start <= path.length()){
+            int end = path.indexOf('/',start);
+            if(end < 0){
+                end = path.length();
+            }
+            String segment = path.substring(start,end);
+            Node child = node.children.get(segment);
+            if(child == null){
+                child = new Node();
+                node.children.put(segment,child);
+            }
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+    /**
+     * init() every servlet once, in the order they were added.
+     */
+    public synchronized void init() throws ServletException{
+        if(initialized){
+            return;
+        }
+        for(Registration registration : servlets.values()){
+            Log.info("init servlet:" + registration.name);
+            registration.servlet.init(new ServletConfigImpl(registration.name,context,registration.initParameters));
+        }
+        initialized = true;
+    }
+    public synchronized void destroy(){
+        if(!initialized){
+            return;
+        }
+        for(Registration registration : servlets.values()){
+            registration.servlet.destroy();
+        }
+        initialized = false;
+    }
+    /**
+     * the servlet mapped to a path ("/a/b.html", without the query).
+     *
+     * @return the match, or null if nothing is mapped to the path
+     */
+    public Match find(String path){
+        if(root.exact != null && (path.equals("/") || path.isEmpty())){
+            return new Match(root.exact.servlet,"","/");
+        }
+        Node node = root;
+        Registration prefix = root.prefix;
+        int prefixEnd = 0;
+        int start = 1;
+        int length = path.length();
+        while(start <= length){
+            int end = path.indexOf('/',start);
+            if(end < 0){
+                end = length;
+            }
+            node = node.children.get(path.substring(start,end));
+            if(node == null){
+                break;
+            }
+            if(node.prefix != null){
+                prefix = node.prefix;
+                prefixEnd = end;
+            }
+            if(end == length){
+                if(node.exact != null){
+                    return new Match(node.exact.servlet,path,null);
+                }
+                break;
+            }
+            start = end + 1;
+        }
+        if(prefix != null){
+            return new Match(prefix.servlet,path.substring(0,prefixEnd),
+                prefixEnd == length ? null : path.substring(prefixEnd));
+        }
+        if(!extensions.isEmpty()){
+            int slash = path.lastIndexOf('/');
+            int dot = path.lastIndexOf('.');
+            if(dot > slash){
+                Registration registration = extensions.get(path.substring(dot + 1));
+                if(registration != null){
+                    return new Match(registration.servlet,path,null);
+                }
+            }
+        }
+        if(defaultServlet != null){
+            return new Match(defaultServlet.servlet,path,null);
+        }
+        return null;
+    }
+}
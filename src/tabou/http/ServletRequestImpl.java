@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.List;
 import java.util.Map;
@@ -47,7 +48,17 @@ import javax.servlet.ServletRequest;
 public class ServletRequestImpl implements ServletRequest {
     // ----------------------------------------------------- Instance Variables
 
-    Map<String,List<String>> parameterMap = new HashMap<String,List<String>>();
+    /**
+     * The request parameters, decoded on first access by
+     * <code>parseParameters()</code>.
+     */
+    protected Map<String,List<String>> parameterMap = new LinkedHashMap<String,List<String>>();
+
+    /**
+     * Have the parameters been decoded into <code>parameterMap</code>?
+     */
+    protected boolean parametersParsed = false;
+
     /**
      * The attributes associated with this Request, keyed by attribute name.
      */
@@ -138,10 +149,75 @@ public class ServletRequestImpl implements ServletRequest {
      * The ServletContext which is used to dispatch further requests
      */
     protected ServletContext servletContext;
+
+    /**
+     * Set by <code>poison()</code>; obtaining, releasing or opening the
+     * body stream or writer of a poisoned object then throws.
+     */
+    protected boolean poisoned = false;
     
     public ServletRequestImpl(ServletContext servletContext) {
         this.servletContext = servletContext;
     }
+
+
+    /**
+     * Release all object references, and initialize instance variables, in
+     * preparation for reuse of this object.  The collections are cleared,
+     * not reallocated.
+     */
+    public void recycle() {
+
+        parameterMap.clear();
+        parametersParsed = false;
+        attributes.clear();
+        authorization = null;
+        characterEncoding = null;
+        contentLength = -1;
+        contentType = null;
+        input = null;
+        locales.clear();
+        protocol = null;
+        reader = null;
+        remoteAddr = null;
+        remoteHost = null;
+        scheme = null;
+        secure = false;
+        serverName = null;
+        serverPort = -1;
+        stream = null;
+
+    }
+
+
+    /**
+     * Recycle this request, drop its collections and mark it, so that any
+     * later use of it fails at once instead of reading the next request.
+     * A poisoned request must not be reused.
+     */
+    public void poison() {
+
+        recycle();
+        parameterMap = null;
+        attributes = null;
+        locales = null;
+        poisoned = true;
+
+    }
+
+
+    /**
+     * Throw if this request has been poisoned, that is, used after it was
+     * released.
+     *
+     * @exception IllegalStateException if this request is poisoned
+     */
+    protected void checkPoisoned() {
+
+        if (poisoned)
+            throw new IllegalStateException("Request used after it was released");
+
+    }
     
     // ------------------------------------------------- ServletRequest Methods
 
@@ -170,12 +246,37 @@ public class ServletRequestImpl implements ServletRequest {
      */
     @Override
     public String getCharacterEncoding() {
+        if (characterEncoding== null) {
+            characterEncoding= charsetOf(getContentType());
+        }
         if (characterEncoding== null) {
             characterEncoding= "ISO-8859-1";
         }
         return this.characterEncoding;
     }
 
+    /**
+     * Return the charset parameter of a content type, or <code>null</code>.
+     *
+     * @param contentType The content type, may be <code>null</code>
+     */
+    protected static String charsetOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int start = contentType.toLowerCase(Locale.ENGLISH).indexOf("charset=");
+        if (start < 0) {
+            return null;
+        }
+        start += "charset=".length();
+        int end = contentType.indexOf(';', start);
+        String charset = (end < 0 ? contentType.substring(start) : contentType.substring(start, end)).trim();
+        if (charset.length() > 1 && charset.startsWith("\"") && charset.endsWith("\"")) {
+            charset = charset.substring(1, charset.length() - 1);
+        }
+        return charset;
+    }
+
     /**
      * Return the content length for this Request.
      */
@@ -203,14 +304,29 @@ public class ServletRequestImpl implements ServletRequest {
      */
     @Override
     public ServletInputStream getInputStream() throws IOException {
+        checkPoisoned();
         if (reader != null) {
             throw new IllegalStateException( "getReader() has already been called" );
         }
-//        if (stream == null)
-//            stream = createInputStream();
+        if (stream == null)
+            stream = createInputStream();
         return stream;
     }
 
+    /**
+     * Create the servlet input stream over the body of this request, or
+     * return <code>null</code> if there is no body stream.
+     */
+    protected ServletInputStream createInputStream() {
+        if (input == null) {
+            return null;
+        }
+        if (input instanceof ServletInputStream) {
+            return (ServletInputStream) input;
+        }
+        return new ServletInputStreamImpl(input);
+    }
+
     /**
      * Return the preferred Locale that the client will accept content in,
      * based on the value for the first <code>Accept-Language</code> header
@@ -248,7 +364,7 @@ public class ServletRequestImpl implements ServletRequest {
      */
     @Override
     public String getParameter(String name) {
-        List<String> values = parameterMap.get(name);
+        List<String> values = parameters().get(name);
         if (values == null){
             return null;
         }
@@ -263,11 +379,11 @@ public class ServletRequestImpl implements ServletRequest {
      */
     @Override
     public String[] getParameterValues(String name) {
-        List<String> values = parameterMap.get(name);
+        List<String> values = parameters().get(name);
         if (values == null){
             return null;
         }
-        return values.toArray(new String[0]);
+        return values.toArray(new String[values.size()]);
     }
 
     /**
@@ -277,11 +393,16 @@ public class ServletRequestImpl implements ServletRequest {
      * or posted form data.
      *
      * @return A <code>Map</code> containing parameter names as keys
-     *  and parameter values as map values.
+     *  and parameter values (<code>String[]</code>) as map values.
      */
     @Override
     public Map getParameterMap() {
-        return parameterMap;
+        Map<String,String[]> map = new LinkedHashMap<String,String[]>();
+        for (Map.Entry<String,List<String>> entry : parameters().entrySet()) {
+            List<String> values = entry.getValue();
+            map.put(entry.getKey(), values.toArray(new String[values.size()]));
+        }
+        return Collections.unmodifiableMap(map);
     }
 
     /**
@@ -289,7 +410,28 @@ public class ServletRequestImpl implements ServletRequest {
      */
     @Override
     public Enumeration getParameterNames() {
-        return Collections.enumeration(parameterMap.keySet());
+        return Collections.enumeration(parameters().keySet());
+    }
+
+    /**
+     * Return the parameters, decoding them on first use so that a request
+     * which never looks at its parameters does not pay for them.
+     */
+    protected Map<String,List<String>> parameters() {
+        if (!parametersParsed) {
+            parametersParsed = true;
+            parseParameters(parameterMap);
+        }
+        return parameterMap;
+    }
+
+    /**
+     * Decode the parameters of this request into <code>map</code>.
+     * The default implementation has no source of parameters.
+     *
+     * @param map The map to add parameters to
+     */
+    protected void parseParameters(Map<String,List<String>> map) {
     }
 
     /**
@@ -311,14 +453,15 @@ public class ServletRequestImpl implements ServletRequest {
      */
     @Override
     public BufferedReader getReader() throws IOException {
+        checkPoisoned();
         if (stream != null) {
             throw new IllegalStateException( "getInputStream() has already been called" );
         }
-        if (reader == null) {
+        if (reader == null && input != null) {
             String encoding = getCharacterEncoding();
-//            InputStreamReader isr =
-//                new InputStreamReader(createInputStream(), encoding);
-//            reader = new BufferedReader(isr);
+            InputStreamReader isr =
+                new InputStreamReader(input, encoding);
+            reader = new BufferedReader(isr);
         }
         return reader;
     }
@@ -20,13 +20,14 @@ package tabou.http;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Locale;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletResponse;
@@ -42,10 +43,23 @@ import javax.servlet.ServletResponse;
 
 public class ServletResponseImpl implements ServletResponse {
 
+    /**
+     * The size of the buffer unless <code>setBufferSize()</code> is called.
+     */
+    protected static final int DEFAULT_BUFFER_SIZE = 8192;
+
+
+    /**
+     * The smallest buffer: room for the longest UTF-8 sequence, which the
+     * writer encodes in place.
+     */
+    protected static final int MIN_BUFFER_SIZE = 4;
+
+
     /**
      * The buffer through which all of our output bytes are passed.
      */
-    protected byte[] buffer = new byte[1024];
+    protected byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
 
 
     /**
@@ -63,22 +77,20 @@ public class ServletResponseImpl implements ServletResponse {
     /**
      * The actual number of bytes written to this Response.
      */
-    protected int contentCount = 0;
+    protected long contentCount = 0;
 
 
     /**
      * The content length associated with this Response.
      */
-    protected int contentLength = -1;
+    protected long contentLength = -1;
 
 
     /**
-     * The HTTP headers explicitly added via addHeader(), but not including
-     * those to be added with setContentLength(), setContentType(), and so on.
-     * This collection is keyed by the header name, and the elements are
-     * ArrayLists containing the associated values that have been set.
+     * The HTTP headers set on this Response, in the order they were set,
+     * including the content type but not the content length.
      */
-    protected Map<String,List<String>> headers = new HashMap<String,List<String>>();
+    protected ResponseHeaders headers = new ResponseHeaders();
 
 
     /**
@@ -86,17 +98,27 @@ public class ServletResponseImpl implements ServletResponse {
      */
     protected String encoding = null;
 
+    /**
+     * The Charset of <code>encoding</code>, looked up on first use.
+     */
+    protected Charset charset = null;
+
     /**
      * The Locale associated with this Response.
      */
     protected Locale locale = Locale.getDefault();
 
     /**
-     * The ServletOutputStream that has been returned by
-     * <code>getOutputStream()</code>, if any.
+     * The ServletOutputStream of the connection.
      */
     protected ServletOutputStream stream = null;
 
+    /**
+     * The stream the body is written to once the response is committed:
+     * the connection stream itself, or a transfer-coding over it.
+     */
+    protected ServletOutputStream bodyStream = null;
+
     /**
      * The PrintWriter that has been returned by
      * <code>getWriter()</code>, if any.
@@ -104,15 +126,107 @@ public class ServletResponseImpl implements ServletResponse {
     protected PrintWriter writer = null;
 
 
+    /**
+     * The writer kept for every response of this object; it becomes
+     * <code>writer</code> when <code>getWriter()</code> is called.
+     */
+    protected ResponseWriter responseWriter = null;
+
+
+    /**
+     * The stream writing into our buffer, returned by
+     * <code>getOutputStream()</code>.
+     */
+    protected ResponseOutputStream outputStream = null;
+
+
+    /**
+     * Has <code>getOutputStream()</code> been called?
+     */
+    protected boolean usingOutputStream = false;
+
+
+    /**
+     * Is the writer being flushed into the buffer only, without
+     * committing this response?
+     */
+    protected boolean suspended = false;
+
+
     /**
      * Error flag. True if the response is an error report.
      */
     protected boolean error = false;
 
+
+    /**
+     * Set by <code>poison()</code>; obtaining, releasing or opening the
+     * body stream or writer of a poisoned object then throws.
+     */
+    protected boolean poisoned = false;
+
     public void setStream(ServletOutputStream stream){
         this.stream = stream;
     }
 
+
+    /**
+     * Release all object references, and initialize instance variables, in
+     * preparation for reuse of this object.  The buffer is kept unless
+     * its size was changed, and so is the stream into it.
+     */
+    public void recycle() {
+
+        if (buffer.length != DEFAULT_BUFFER_SIZE)
+            buffer = new byte[DEFAULT_BUFFER_SIZE];
+        bufferCount = 0;
+        committed = false;
+        contentCount = 0;
+        contentLength = -1;
+        headers.clear();
+        encoding = null;
+        charset = null;
+        locale = Locale.getDefault();
+        stream = null;
+        bodyStream = null;
+        writer = null;
+        usingOutputStream = false;
+        suspended = false;
+        error = false;
+
+    }
+
+
+    /**
+     * Recycle this response, drop its buffer, streams and headers and mark
+     * it, so that any later use of it fails at once instead of writing
+     * into the next response.  A poisoned response must not be reused.
+     */
+    public void poison() {
+
+        recycle();
+        buffer = null;
+        headers = null;
+        outputStream = null;
+        responseWriter = null;
+        poisoned = true;
+
+    }
+
+
+    /**
+     * Throw if this response has been poisoned, that is, used after it was
+     * released.
+     *
+     * @exception IllegalStateException if this response is poisoned
+     */
+    protected void checkPoisoned() {
+
+        if (poisoned)
+            throw new IllegalStateException("Response used after it was released");
+
+    }
+
     // ------------------------------------------------ ServletResponse Methods
 
 
@@ -123,7 +237,170 @@ public class ServletResponseImpl implements ServletResponse {
      */
     @Override
     public void flushBuffer() throws IOException {
-        stream.flush();
+
+        writeBuffer();
+        bodyStream.flush();
+
+    }
+
+
+    /**
+     * Commit this response if necessary and pass the buffered bytes on to
+     * the body stream, without flushing it.  When the response is
+     * committed here, the head and the buffered body go out in one
+     * gathering write.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void writeBuffer() throws IOException {
+
+        writeBuffer(null, 0, 0);
+
+    }
+
+
+    /**
+     * Same as <code>writeBuffer()</code>, followed by <code>len</code>
+     * more bytes of <code>b</code> that are gathered into the same write.
+     *
+     * @param b The bytes to be written after the buffer, or null
+     * @param off The start offset in <code>b</code>
+     * @param len The number of bytes of <code>b</code> to be written
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void writeBuffer(byte[] b, int off, int len) throws IOException {
+
+        byte[] head = committed ? null : commit();
+        if (bodyStream == stream && stream instanceof ServletOutputStreamImpl) {
+            ByteBuffer[] buffers = new ByteBuffer[3];
+            int n = 0;
+            if (head != null && head.length > 0)
+                buffers[n++] = ByteBuffer.wrap(head);
+            if (bufferCount > 0)
+                buffers[n++] = ByteBuffer.wrap(buffer, 0, bufferCount);
+            if (len > 0)
+                buffers[n++] = ByteBuffer.wrap(b, off, len);
+            bufferCount = 0;
+            if (n > 0)
+                ((ServletOutputStreamImpl) stream).write(Arrays.copyOf(buffers, n));
+            return;
+        }
+        if (head != null && head.length > 0)
+            stream.write(head, 0, head.length);
+        if (bufferCount > 0) {
+            bodyStream.write(buffer, 0, bufferCount);
+            bufferCount = 0;
+        }
+        if (len > 0)
+            bodyStream.write(b, off, len);
+
+    }
+
+
+    /**
+     * Send part of a file as the rest of the body, committing this
+     * response first.  When the connection has a channel the file goes
+     * out with FileChannel.transferTo, without being copied.
+     *
+     * @param file The file to be sent
+     * @param position The position of the first byte to be sent
+     * @param count The number of bytes to be sent
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+
+        flushWriter();
+        writeBuffer();
+        if (bodyStream == stream && stream instanceof ServletOutputStreamImpl) {
+            ((ServletOutputStreamImpl) stream).transferFrom(file, position, count);
+        } else {
+            new ServletOutputStreamImpl(bodyStream).transferFrom(file, position, count);
+        }
+        contentCount += count;
+
+    }
+
+
+    /**
+     * Commit this response and choose the stream the body is written to.
+     *
+     * @return the bytes to send before the body, unless the body stream
+     *  sends them itself
+     * @exception IOException if an input/output error occurs
+     */
+    protected byte[] commit() throws IOException {
+
+        committed = true;
+        bodyStream = stream;
+        return (new byte[0]);
+
+    }
+
+
+    /**
+     * Flush the characters held by the writer into our buffer, without
+     * committing this response.
+     */
+    protected void flushWriter() {
+
+        if (writer == null)
+            return;
+        suspended = true;
+        try {
+            writer.flush();
+        } finally {
+            suspended = false;
+        }
+
+    }
+
+
+    /**
+     * Write a byte into our buffer, sending the buffer first if it is full.
+     *
+     * @param b The byte to be written
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void write(int b) throws IOException {
+
+        if (bufferCount == buffer.length)
+            writeBuffer();
+        buffer[bufferCount++] = (byte) b;
+        contentCount++;
+
+    }
+
+
+    /**
+     * Write bytes into our buffer.  When they do not fit, the buffer is
+     * sent (committing this response), and writes as large as the buffer
+     * go to the body stream in the same write, without being copied.
+     *
+     * @param b The bytes to be written
+     * @param off The start offset in <code>b</code>
+     * @param len The number of bytes to be written
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void write(byte[] b, int off, int len) throws IOException {
+
+        contentCount += len;
+        if (bufferCount + len <= buffer.length) {
+            System.arraycopy(b, off, buffer, bufferCount, len);
+            bufferCount += len;
+            return;
+        }
+        if (len >= buffer.length) {
+            writeBuffer(b, off, len);
+            return;
+        }
+        writeBuffer();
+        System.arraycopy(b, off, buffer, 0, len);
+        bufferCount = len;
+
     }
 
 
@@ -148,6 +425,25 @@ public class ServletResponseImpl implements ServletResponse {
         return encoding;
     }
 
+    /**
+     * Return the Charset of the character encoding, looked up once per
+     * encoding.
+     */
+    protected Charset getCharset() {
+
+        if (charset == null) {
+            String name = getCharacterEncoding();
+            if (name.equalsIgnoreCase("utf-8"))
+                charset = StandardCharsets.UTF_8;
+            else if (name.equalsIgnoreCase("iso-8859-1"))
+                charset = StandardCharsets.ISO_8859_1;
+            else
+                charset = Charset.forName(name);
+        }
+        return (charset);
+
+    }
+
     /**
      * Return the servlet output stream associated with this Response.
      *
@@ -157,7 +453,15 @@ public class ServletResponseImpl implements ServletResponse {
      */
     @Override
     public ServletOutputStream getOutputStream() throws IOException {
-        return stream;
+
+        checkPoisoned();
+        if (writer != null)
+            throw new IllegalStateException( "getWriter() has already been called" );
+        usingOutputStream = true;
+        if (outputStream == null)
+            outputStream = new ResponseOutputStream(this);
+        return (outputStream);
+
     }
 
     /**
@@ -178,16 +482,24 @@ public class ServletResponseImpl implements ServletResponse {
     @Override
     public PrintWriter getWriter() throws IOException {
 
+        checkPoisoned();
         if (this.writer != null){
             return this.writer;
         }
-//        if (stream != null) {
-//            throw new IllegalStateException( "getOutputStream() has already been called" );
-//        }
-        // a slight hack which slightly breaks the Servlet contract...
-        // see commented out section below for what it should be...
-        flushBuffer(); //TODO
-        this.writer = new PrintWriter( new OutputStreamWriter(stream, getCharacterEncoding()));
+        if (usingOutputStream) {
+            throw new IllegalStateException( "getOutputStream() has already been called" );
+        }
+        Charset charset;
+        try {
+            charset = getCharset();
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedEncodingException(getCharacterEncoding());
+        }
+        if (responseWriter == null)
+            responseWriter = new ResponseWriter(this, charset);
+        else
+            responseWriter.recycle(charset);
+        this.writer = responseWriter;
         return this.writer;
     }
 
@@ -211,7 +523,9 @@ public class ServletResponseImpl implements ServletResponse {
         if (committed) {
             throw new IllegalStateException( "response has already been committed" );
         }
+        flushWriter();
         bufferCount = 0;
+        contentCount = 0;
         contentLength = -1;
         setContentType(null);
     }
@@ -229,8 +543,9 @@ public class ServletResponseImpl implements ServletResponse {
         if (committed) {
             throw new IllegalStateException( "response has already been committed" );
         }
-        
+        flushWriter();
         bufferCount = 0;
+        contentCount = 0;
 
     }
 
@@ -245,11 +560,13 @@ public class ServletResponseImpl implements ServletResponse {
     @Override
     public void setBufferSize(int size) {
 
-        if (committed || (bufferCount > 0)) {
+        if (committed || (contentCount > 0)) {
             throw new IllegalStateException( "Output has already been committed" );
         }
 
-        if (buffer.length >= size)
+        if (size < MIN_BUFFER_SIZE)
+            size = MIN_BUFFER_SIZE;
+        if (buffer.length == size)
             return;
         buffer = new byte[size];
 
@@ -263,6 +580,18 @@ public class ServletResponseImpl implements ServletResponse {
     @Override
     public void setContentLength(int length) {
 
+        setContentLengthLong(length);
+
+    }
+
+    /**
+     * Set the content length (in bytes) for this Response, which may be
+     * larger than an <code>int</code>, as for a file of over 2 GB.
+     *
+     * @param length The new content length
+     */
+    public void setContentLengthLong(long length) {
+
         if (isCommitted()){
             return;
         }
@@ -280,13 +609,21 @@ public class ServletResponseImpl implements ServletResponse {
         if (isCommitted()){
             return;
         }
-        if(type == null){
-            headers.remove("CONTENT-TYPE");
+        headers.setContentType(type);
+        if (type == null || writer != null)
+            return;
+        int start = type.toLowerCase(Locale.ROOT).indexOf("charset=");
+        if (start < 0)
             return;
+        start += "charset=".length();
+        int end = type.indexOf(';', start);
+        String value = type.substring(start, end < 0 ? type.length() : end).trim();
+        if (value.length() > 1 && value.charAt(0) == '"' && value.endsWith("\""))
+            value = value.substring(1, value.length() - 1);
+        if (!value.equalsIgnoreCase(getCharacterEncoding())) {
+            encoding = value;
+            charset = null;
         }
-        List<String> typeList = new ArrayList<String>();
-        typeList.add(type);
-        headers.put("CONTENT-TYPE",typeList);
     }
 
     /**
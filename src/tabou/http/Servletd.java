@@ -8,22 +8,71 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
 import java.util.logging.Level;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import tabou.log.TabouLog;
 import static tabou.log.TabouLog.Log;
 import javax.servlet.ServletException;
-import javax.servlet.ServletContext;
+import javax.servlet.Servlet;
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
-import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletResponse;
 
 public class Servletd {
     static private final int DEFAULT_PROXY_PORT = 8080;
+    static private final int DEFAULT_THREADS    = Runtime.getRuntime().availableProcessors() * 2;
+    static private final int DEFAULT_QUEUE_SIZE = 256;
+    static private final int READ_TIMEOUT       = 1000 * 100;
+    static private final long DRAIN_TIMEOUT     = READ_TIMEOUT;
+    static private final int DEFAULT_KEEP_ALIVE_TIMEOUT = 1000 * 15;
+    static private final int DEFAULT_MAX_REQUESTS       = 100;
+    static private final long MAX_DRAIN = 1024 * 1024; /* unread body skipped to keep the connection */
+    static private final byte[] BAD_REQUEST = (
+        "HTTP/1.0 400 Bad Request\r\n" +
+        "Content-Length: 0\r\n" +
+        "Connection: close\r\n" +
+        "\r\n").getBytes();
+    static private final byte[] SERVICE_UNAVAILABLE = (
+        "HTTP/1.0 503 Service Unavailable\r\n" +
+        "Content-Length: 0\r\n" +
+        "Connection: close\r\n" +
+        "\r\n").getBytes();
     private ServerSocket serverSocket;
+    private int threads   = DEFAULT_THREADS;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private boolean virtual = false;
+    private int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private int maxRequests      = DEFAULT_MAX_REQUESTS;
+    private int chunkSize        = ChunkOutputStream.DEFAULT_CHUNK_SIZE;
+    private ExecutorService executor;
+    private ExecutorService asyncExecutor = null;
+    private StaticFileServlet staticFileServlet = null;
+    private final ServletContextImpl servletContext = new ServletContextImpl();
+    private final ServletRegistry registry = new ServletRegistry(servletContext);
+    private int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+    private boolean poison = false;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong rejectedCount = new AtomicLong();
 
     public static void usage() {
-        System.err.println("usage: java tabou.http.EchoHttp [-p port no]");
+        System.err.println("usage: java tabou.http.Servletd [-p port no] [-t threads] [-q queue size] [-V]"
+            + " [-k keep-alive timeout sec] [-m max requests per connection] [-c chunk size]"
+            + " [-d document root] [-z compression threshold, -1: off]"
+            + " [-i context init parameters file] [-P poison recycled requests]");
         System.exit(-1);
     }
     public static void main(String[] args) throws Exception{
@@ -45,6 +94,36 @@ public class Servletd {
             case 'p':
                 localPort = Integer.parseInt(args[++argi]);  /*port no       */
                 break;
+            case 't':
+                servletd.setThreads(Integer.parseInt(args[++argi]));
+                break;
+            case 'q':
+                servletd.setQueueSize(Integer.parseInt(args[++argi]));
+                break;
+            case 'V':
+                servletd.setVirtual(true);  /* virtual thread per connection */
+                break;
+            case 'k':
+                servletd.setKeepAliveTimeout(Integer.parseInt(args[++argi]) * 1000);
+                break;
+            case 'm':
+                servletd.setMaxRequests(Integer.parseInt(args[++argi]));
+                break;
+            case 'c':
+                servletd.setChunkSize(Integer.parseInt(args[++argi]));
+                break;
+            case 'd':
+                servletd.setDocumentRoot(Paths.get(args[++argi]));
+                break;
+            case 'z':
+                servletd.setCompressionThreshold(Integer.parseInt(args[++argi]));
+                break;
+            case 'P':
+                servletd.setPoison(true);
+                break;
+            case 'i':
+                servletd.getServletContext().loadInitParameters(Paths.get(args[++argi]));
+                break;
             default:
                 System.err.println("invalid option:" + c);
                 usage();
@@ -52,65 +131,516 @@ public class Servletd {
         }
         servletd.accrpt(localPort);
     }
-    public void accrpt(int localPort) throws IOException{
-        this.serverSocket = new ServerSocket(localPort);
+    public void setThreads(int threads){
+        this.threads = threads;
+    }
+    public void setQueueSize(int queueSize){
+        this.queueSize = queueSize;
+    }
+    /**
+     * run each connection on its own virtual thread instead of the pool.
+     */
+    public void setVirtual(boolean virtual){
+        this.virtual = virtual;
+    }
+    /**
+     * how long (ms) an idle keep-alive connection waits for the next request.
+     */
+    public void setKeepAliveTimeout(int keepAliveTimeout){
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+    /**
+     * requests served on one connection before it is closed.
+     */
+    public void setMaxRequests(int maxRequests){
+        this.maxRequests = maxRequests;
+    }
+    /**
+     * size of the chunks of responses sent without a content length.
+     */
+    public void setChunkSize(int chunkSize){
+        this.chunkSize = chunkSize;
+    }
+    /**
+     * smallest response body compressed with gzip/deflate; -1 turns it off.
+     */
+    public void setCompressionThreshold(int compressionThreshold){
+        this.compressionThreshold = compressionThreshold;
+    }
+    /**
+     * debug: poison each request and response when it is done instead of
+     * recycling it, so that a servlet still using one fails at once.
+     */
+    public void setPoison(boolean poison){
+        this.poison = poison;
+    }
+    /**
+     * serve the files of <code>documentRoot</code> at "/"; HelloServlet
+     * moves to "/hello".
+     */
+    public void setDocumentRoot(Path documentRoot){
+        servletContext.setDocumentRoot(documentRoot);
+        this.staticFileServlet = new StaticFileServlet(servletContext);
+    }
+    /**
+     * the context shared by all servlets; its init parameters and
+     * listeners are set before the server starts.
+     */
+    public ServletContextImpl getServletContext(){
+        return servletContext;
+    }
+    /**
+     * the servlets and their mappings; add to it before the server starts.
+     */
+    public ServletRegistry getRegistry(){
+        return registry;
+    }
+    /**
+     * map the default servlets unless "/" is mapped already, notify the
+     * context listeners and init() every servlet once.
+     */
+    public synchronized void start() throws ServletException{
+        if(!registry.hasDefaultServlet()){
+            registry.addServlet("hello",new HelloServlet());
+            if(staticFileServlet != null){
+                registry.addServlet("default",staticFileServlet);
+                registry.addMapping("/","default");
+                registry.addMapping("/hello","hello");
+            }else{
+                registry.addMapping("/","hello");
+            }
+        }
+        servletContext.contextInitialized();
+        registry.init();
+    }
+    /**
+     * number of accepted connections waiting for a worker.
+     */
+    public int getQueueDepth(){
+        if(executor instanceof ThreadPoolExecutor){
+            return ((ThreadPoolExecutor)executor).getQueue().size();
+        }
+        return 0;
+    }
+    /**
+     * number of workers currently handling a connection.
+     */
+    public int getActiveWorkers(){
+        return activeConnections.get();
+    }
+    /**
+     * number of connections answered with 503 because the queue was full.
+     */
+    public long getRejectedCount(){
+        return rejectedCount.get();
+    }
+    public void accrpt(int localPort) throws IOException,ServletException{
+        start();
+        /* sockets of a channel, so that responses can use gathering writes */
+        this.serverSocket = ServerSocketChannel.open().socket();
+        this.serverSocket.bind(new InetSocketAddress(localPort));
+        if(virtual){
+            this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        }else{
+            this.executor = new ThreadPoolExecutor(threads, threads,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new RejectedExecutionHandler(){
+                    @Override
+                    public void rejectedExecution(Runnable runnable,ThreadPoolExecutor executor){
+                        Connection connection = (Connection)runnable;
+                        if(connection.isResumed()){
+                            throw new RejectedExecutionException("no worker to resume a connection");
+                        }
+                        connection.reject();
+                    }
+                });
+        }
+        Log.info("wait:*."+ localPort  +" ...");
         while (true) {
-            Log.info("wait:*."+ localPort  +" ...");
             Socket requestSocket = this.serverSocket.accept();
-            Log.info("accept:" + requestSocket.getInetAddress());
+            Log.info("accept:" + requestSocket.getInetAddress()
+                + " queue:" + getQueueDepth() + " active:" + getActiveWorkers());
+            executor.execute(new Connection(requestSocket));
+        }
+    }
+    /**
+     * stop accepting, wait for the connections in flight to finish and
+     * destroy the servlets.
+     */
+    public void close() throws IOException{
+        if(serverSocket != null){
+            serverSocket.close();
+        }
+        if(executor != null){
+            executor.shutdown();
+            try{
+                if(!executor.awaitTermination(DRAIN_TIMEOUT,TimeUnit.MILLISECONDS)){
+                    Log.warning("drain timeout active:" + getActiveWorkers());
+                    executor.shutdownNow();
+                }
+            }catch(InterruptedException e){
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        destroy();
+    }
+    /**
+     * once no request is in flight: stop the asynchronous work, destroy
+     * the servlets and notify the context listeners. also the last step of
+     * closing an engine that uses this server only for request().
+     */
+    public void destroy(){
+        synchronized(this){
+            if(asyncExecutor != null){
+                asyncExecutor.shutdownNow();
+            }
+        }
+        registry.destroy();
+        servletContext.contextDestroyed();
+    }
+    /**
+     * told when a request has been answered. for a request that went
+     * asynchronous this happens after request() has returned, on the
+     * thread that completed it.
+     */
+    public interface Completion {
+        /**
+         * @param reuse true if the connection can carry another request
+         */
+        void completed(boolean reuse);
+    }
+    /**
+     * one accepted socket, handled by a worker thread.
+     * when a request goes asynchronous the worker leaves the connection
+     * open and returns; once the request completes a worker goes on with
+     * the next request.
+     */
+    private class Connection implements Runnable,Completion {
+        private final Socket requestSocket;
+        private BufferedInputStream input;
+        private ServletInputStreamImpl servletInputStream;
+        private ServletOutputStreamImpl servletOutputStream;
+        private HttpHead head = null;
+        private int count = 0;
+        private boolean completed = false;
+        private boolean reuse = false;
+        private boolean parked = false;
+        private boolean resumed = false;  /* has served a request before */
+        Connection(Socket requestSocket){
+            this.requestSocket = requestSocket;
+        }
+        @Override
+        public void run(){
+            activeConnections.incrementAndGet();
+            boolean open = false;
             try{
-                request(requestSocket);
+                open = serve();
             }catch(Exception e){
                 Log.log(Level.WARNING,e.toString(),e);
             }finally{
+                activeConnections.decrementAndGet();
+                if(!open){
+                    close();
+                }
+            }
+        }
+        /**
+         * serve requests until the client or a response asks to close, the
+         * connection is idle too long, maxRequests is reached or a request
+         * goes asynchronous.
+         * pipelined requests are already waiting in the BufferedInputStream.
+         *
+         * @return true if the connection waits for an asynchronous request
+         */
+        private boolean serve() throws ServletException,IOException{
+            if(head == null){
+                requestSocket.setSoTimeout(READ_TIMEOUT);
+                input = new BufferedInputStream(requestSocket.getInputStream());
+                servletInputStream = new ServletInputStreamImpl(input);
+                servletOutputStream = new ServletOutputStreamImpl(requestSocket.getOutputStream(),requestSocket.getChannel());
+                head = HttpHead.obtain();
+                head.setConnection((InetSocketAddress)requestSocket.getLocalSocketAddress(),
+                    (InetSocketAddress)requestSocket.getRemoteSocketAddress());
+            }else if(!reuse){
+                return false;
+            }
+            while(true){
+                count++;
+                if(count > 1){
+                    requestSocket.setSoTimeout(keepAliveTimeout);
+                }
+                try{
+                    if(!head.read(input)){
+                        return false; //closed by the client
+                    }
+                }catch(SocketTimeoutException e){
+                    if(count == 1){
+                        throw e;
+                    }
+                    Log.info("keep-alive timeout:" + count);
+                    return false;
+                }
+                requestSocket.setSoTimeout(READ_TIMEOUT);
+                if(!head.isValid()){
+                    Log.warning("bad request: " + head.getRequestLine());
+                    servletOutputStream.write(BAD_REQUEST);
+                    servletOutputStream.flush();
+                    return false;
+                }
+                synchronized(this){
+                    completed = false;
+                }
+                request(head,servletInputStream,servletOutputStream,count < maxRequests,this);
+                synchronized(this){
+                    if(!completed){
+                        parked = true;
+                        return true;
+                    }
+                }
+                if(!reuse){
+                    return false;
+                }
+            }
+        }
+        /**
+         * the last request has been answered; a parked connection goes back
+         * to a worker, or is closed.
+         */
+        @Override
+        public void completed(boolean reuse){
+            boolean resume;
+            synchronized(this){
+                this.reuse = reuse;
+                completed = true;
+                resume = parked;
+                parked = false;
+            }
+            if(!resume){
+                return;
+            }
+            if(reuse){
+                resume();
+            }else{
+                close();
+            }
+        }
+        /**
+         * give the connection back to a worker. when none will take it, the
+         * connection is closed quietly: it has carried a response already,
+         * so it must not be answered with a 503.
+         */
+        private void resume(){
+            synchronized(this){
+                resumed = true;
+            }
+            try{
+                executor.execute(this);
+            }catch(RejectedExecutionException e){
+                Log.warning("resume rejected: " + requestSocket.getInetAddress());
+                close();
+            }
+        }
+        synchronized boolean isResumed(){
+            return resumed;
+        }
+        /**
+         * queue is full for a newly accepted connection: answer 503 without
+         * reading the request.
+         */
+        void reject(){
+            long count = rejectedCount.incrementAndGet();
+            Log.warning("reject:" + requestSocket.getInetAddress() + " rejected:" + count);
+            try{
+                requestSocket.getOutputStream().write(SERVICE_UNAVAILABLE);
+            }catch(IOException e){
+                Log.warning(e.toString());
+            }finally{
+                close();
+            }
+        }
+        private void close(){
+            try{
                 requestSocket.close();
+            }catch(IOException e){
+                Log.warning(e.toString());
+            }
+            if(head != null){
+                head.release();
+                head = null;
             }
             Log.info("close");
         }
     }
-    public void close() throws IOException{
-        this.serverSocket.close();
+    /**
+     * serve one request whose head has been parsed; <code>servletInputStream</code>
+     * is at the first byte of the body.
+     * shared by the socket and the selector ({@link NioServletd}) engines.
+     * an exception thrown here means the request was not answered, and
+     * <code>completion</code> is not called.
+     *
+     * @param reuse false if the connection must be closed after this request
+     * @param completion told when the response is complete; the connection
+     *  must not be used for anything else until then
+     */
+    public void request(HttpHead head,ServletInputStreamImpl servletInputStream,ServletOutputStream servletOutputStream,boolean reuse,
+            Completion completion) throws ServletException,IOException{
+        new Exchange(head,servletInputStream,servletOutputStream,reuse,completion).start();
+    }
+    /**
+     * threads for AsyncContext.dispatch() and start().
+     */
+    private synchronized ExecutorService getAsyncExecutor(){
+        if(asyncExecutor == null){
+            asyncExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return asyncExecutor;
     }
-    public void request(Socket requestSocket) throws ServletException,IOException{
-        requestSocket.setSoTimeout(1000 * 100);
+    /**
+     * one request and its response, until the response is complete;
+     * also what the server does when the request goes asynchronous.
+     */
+    private class Exchange implements AsyncContext.Container {
+        private final HttpHead head;
+        private final ServletOutputStream servletOutputStream;
+        private final Completion completion;
+        private final HttpServletRequestImpl request   = HttpServletRequestImpl.obtain(servletContext);
+        private final HttpServletResponseImpl response = HttpServletResponseImpl.obtain();
+        private final BodyInputStream body;
+        private final long sent;
 
-        ServletInputStreamImpl servletInputStream = new ServletInputStreamImpl(new BufferedInputStream(requestSocket.getInputStream()));
-        ServletOutputStream servletOutputStream = new ServletOutputStreamImpl(requestSocket.getOutputStream());
-        String firstLine = servletInputStream.readLine();
-        Log.info(firstLine);
-        int contentLength = 0;
-        while(true){
-            String line = servletInputStream.readLine();
-            if(line == null){
-                break;
-            }else if(line.equals("")){
-                break;
+        Exchange(HttpHead head,ServletInputStreamImpl servletInputStream,ServletOutputStream servletOutputStream,boolean reuse,
+                Completion completion){
+            this.head = head;
+            this.servletOutputStream = servletOutputStream;
+            this.completion = completion;
+            this.sent = servletOutputStream instanceof ServletOutputStreamImpl
+                ? ((ServletOutputStreamImpl)servletOutputStream).getByteCount() : 0;
+            this.body = head.isChunked()
+                ? new BodyInputStream(new ChunkInputStream(servletInputStream))
+                : new BodyInputStream(servletInputStream,head.getContentLength());
+            request.setHead(head);
+            request.setInput(body);
+            request.setAsyncContainer(this,response);
+            response.setProtocol(head.isHttp11() ? "HTTP/1.1" : "HTTP/1.0");
+            response.setKeepAlive(head.isKeepAlive() && reuse);
+            response.setChunkSize(chunkSize);
+            if(!"HEAD".equals(head.getMethod())){
+                response.setCompression(head.getHeader("Accept-Encoding"),compressionThreshold);
+                response.setResource(head.getRequestURI());
             }
-            Log.info(line);
-            int index = line.indexOf(':');
-            String tagName = line.substring(0,index).toUpperCase();
-            String value   = line.substring(index +1).trim();
-            if(tagName.equals("CONTENT-LENGTH")){
-                contentLength = Integer.parseInt(value);
+            response.setStream(servletOutputStream);
+        }
+        void start() throws ServletException,IOException{
+            try{
+                Servlet servlet = select(request.getRequestURI(),true);
+                if(servlet != null){
+                    servlet.service(request,response);
+                }
+            }catch(ServletException | IOException | RuntimeException e){
+                AsyncContext async = request.asyncContext;
+                if(async == null){
+                    release();
+                    throw e;
+                }
+                async.serviceFailed(e);
+                return;
+            }
+            AsyncContext async = request.asyncContext;
+            if(async == null){
+                complete();
+            }else{
+                async.serviceReturned();
             }
         }
-
-        for(int i = 0;i < contentLength;i++){
-            int c = servletInputStream.read();
-            if(c < 0){
-                break;
+        /**
+         * the servlet mapped to <code>path</code>, or null if the response
+         * is made already (404, or 304 when <code>conditional</code>).
+         */
+        private Servlet select(String path,boolean conditional) throws IOException{
+            ServletRegistry.Match match = registry.find(path);
+            if(match == null){
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return null;
             }
-//            byteArrayOutputStream.write(c);
-        }
-        HelloServlet httpServlet         = new HelloServlet();
-        ServletContext servletContext    = new ServletContextImpl();
-        HttpServletRequestImpl request   = new HttpServletRequestImpl(servletContext);
-        HttpServletResponseImpl response = new HttpServletResponseImpl();
-        response.setHeader("Connection","close");
-        response.setStream(servletOutputStream);
-        httpServlet.doGet(request,response);
-        response.getWriter().close();
-        servletOutputStream.close();
-        servletInputStream.close();
+            request.setServletPath(match.servletPath);
+            request.setPathInfo(match.pathInfo);
+            Servlet servlet = match.servlet;
+            if(conditional && servlet instanceof ConditionalServlet){
+                ConditionalServlet conditionalServlet = (ConditionalServlet)servlet;
+                if(ConditionalGet.notModified(request,response,
+                        conditionalServlet.getLastModified(request),conditionalServlet.getETag(request))){
+                    return null;
+                }
+            }
+            return servlet;
+        }
+        @Override
+        public void dispatch(final String path){
+            getAsyncExecutor().execute(new Runnable(){
+                @Override
+                public void run(){
+                    AsyncContext async = request.asyncContext;
+                    async.enterService();
+                    try{
+                        Servlet servlet = select(path == null ? request.getRequestURI() : path,false);
+                        if(servlet != null){
+                            servlet.service(request,response);
+                        }
+                    }catch(ServletException | IOException | RuntimeException e){
+                        async.serviceFailed(e);
+                        return;
+                    }
+                    async.serviceReturned();
+                }
+            });
+        }
+        @Override
+        public void execute(Runnable runnable){
+            getAsyncExecutor().execute(runnable);
+        }
+        /**
+         * send the rest of the response, skip what is left of the body and
+         * tell the completion whether the connection can be reused.
+         */
+        @Override
+        public void complete(){
+            boolean reuse = false;
+            try{
+                response.finishResponse();
+                long bytes = servletOutputStream instanceof ServletOutputStreamImpl
+                    ? ((ServletOutputStreamImpl)servletOutputStream).getByteCount() - sent : -1;
+                Log.info(head.getRequestLine() + " " + response.getStatus() + " " + bytes);
+                if(request.asyncContext != null){
+                    request.asyncContext.completed();
+                }
+                if(response.isKeepAlive()){
+                    reuse = body.drain(MAX_DRAIN);
+                    if(!reuse){
+                        Log.info("unread body too large, close");
+                    }
+                }
+            }catch(IOException e){
+                Log.warning(e.toString());
+            }finally{
+                release();
+            }
+            completion.completed(reuse);
+        }
+        /**
+         * give the request and response back to the pool of this thread.
+         * an asynchronous exchange ends on some other thread, whose pool is
+         * not the worker's, so its objects are left to the garbage collector.
+         */
+        private void release(){
+            if(poison){
+                request.poison();
+                response.poison();
+            }else if(request.asyncContext == null){
+                request.release();
+                response.release();
+            }
+        }
     }
 }
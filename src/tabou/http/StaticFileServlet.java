@@ -0,0 +1,270 @@
+/* Copyright(c) 2013 M Hata
+   This software is released under the MIT License.
+   http://opensource.org/licenses/mit-license.php */
+package tabou.http;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * files of the document root of a ServletContextImpl.
+ * small files come from a FileCache with their headers encoded in advance,
+ * large ones go to the socket with FileChannel.transferTo.
+ * a single byte range (Range: bytes=a-b) is honored; If-None-Match and
+ * If-Modified-Since are answered with 304.
+ * when the response may be compressed, a newer <code>.gz</code> sibling
+ * is sent if there is one; otherwise small files are compressed once
+ * (Compression keeps the result by entity tag) and large ones as they
+ * are sent.
+ */
+public class StaticFileServlet extends HttpServlet {
+    static public final int DEFAULT_MAX_FILE_SIZE = 64 * 1024;
+    static public final long DEFAULT_CACHE_SIZE = 16L * 1024 * 1024;
+    static private final long serialVersionUID = 1L;
+    static private final String INDEX = "index.html";
+    private final transient ServletContextImpl context;
+    private final transient FileCache cache;
+
+    public StaticFileServlet(ServletContextImpl context){
+        this(context,DEFAULT_MAX_FILE_SIZE,DEFAULT_CACHE_SIZE);
+    }
+    /**
+     * @param maxFileSize largest file kept in memory
+     * @param cacheSize bytes of files kept in memory
+     */
+    public StaticFileServlet(ServletContextImpl context,int maxFileSize,long cacheSize){
+        this.context = context;
+        this.cache = new FileCache(context,maxFileSize,cacheSize);
+    }
+    @Override
+    public void doGet(HttpServletRequest request,HttpServletResponse response) throws ServletException,IOException{
+        serve(request,response,true);
+    }
+    @Override
+    public void doHead(HttpServletRequest request,HttpServletResponse response) throws ServletException,IOException{
+        serve(request,response,false);
+    }
+    private void serve(HttpServletRequest request,HttpServletResponse response,boolean content) throws IOException{
+        String path = getPath(request);
+        FileCache.Entry entry = cache.get(path.endsWith("/") ? path + INDEX : path);
+        if(entry == null){
+            if(!path.endsWith("/") && context.getResourceFile(path) != null
+                    && Files.isDirectory(context.getResourceFile(path))){
+                response.sendRedirect(request.getRequestURI() + "/");
+                return;
+            }
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        HttpServletResponseImpl responseImpl = response instanceof HttpServletResponseImpl
+            ? (HttpServletResponseImpl)response : null;
+        String coding = null;
+        if(responseImpl != null && request.getHeader("Range") == null){
+            coding = responseImpl.chooseContentCoding(entry.contentType,entry.length);
+        }
+        if(ConditionalGet.isNotModified(request,entry.lastModified,entry.etag)){
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            if(coding != null){
+                response.setDateHeader("Last-Modified",entry.lastModified);
+                response.setHeader("ETag",Compression.variant(entry.etag,coding));
+                response.setHeader("Vary","Accept-Encoding");
+            }else if(responseImpl != null){
+                responseImpl.setEncodedHeaders(entry.validators);
+            }else{
+                response.setDateHeader("Last-Modified",entry.lastModified);
+                response.setHeader("ETag",entry.etag);
+            }
+            return;
+        }
+        if(coding != null){
+            serveCompressed(path,entry,responseImpl,coding,content);
+            return;
+        }
+        long start = 0;
+        long length = entry.length;
+        String range = request.getHeader("Range");
+        if(range != null && ConditionalGet.isRangeCurrent(request,entry.lastModified,entry.etag)){
+            long[] bytes = parseRange(range,entry.length);
+            if(bytes == UNSATISFIABLE){
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader("Content-Range","bytes */" + entry.length);
+                return;
+            }
+            if(bytes != null){
+                start = bytes[0];
+                length = bytes[1] - bytes[0] + 1;
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range","bytes " + bytes[0] + "-" + bytes[1] + "/" + entry.length);
+            }
+        }
+        if(responseImpl != null){
+            responseImpl.setEncodedHeaders(entry.headers);
+            if(responseImpl.isCompressionEnabled() && Compression.isCompressible(entry.contentType)){
+                response.setHeader("Vary","Accept-Encoding");
+            }
+        }else{
+            if(entry.contentType != null){
+                response.setContentType(entry.contentType);
+            }
+            response.setDateHeader("Last-Modified",entry.lastModified);
+            response.setHeader("ETag",entry.etag);
+            response.setHeader("Accept-Ranges","bytes");
+        }
+        setContentLength(response,length);
+        if(!content || length == 0){
+            return;
+        }
+        if(entry.body != null){
+            response.getOutputStream().write(entry.body,(int)start,(int)length);
+            return;
+        }
+        try(FileChannel file = FileChannel.open(entry.file,StandardOpenOption.READ)){
+            if(responseImpl != null){
+                responseImpl.sendFile(file,start,length);
+                return;
+            }
+            ServletOutputStream out = response.getOutputStream();
+            try(InputStream in = Channels.newInputStream(file.position(start))){
+                byte[] buffer = new byte[8192];
+                while(length > 0){
+                    int n = in.read(buffer,0,(int)Math.min(buffer.length,length));
+                    if(n < 0){
+                        break;
+                    }
+                    out.write(buffer,0,n);
+                    length -= n;
+                }
+            }
+        }
+    }
+    /**
+     * set a length that may not fit an int; a response of another server
+     * goes without Content-Length above 2 GB.
+     */
+    private static void setContentLength(HttpServletResponse response,long length){
+        if(response instanceof HttpServletResponseImpl){
+            ((HttpServletResponseImpl)response).setContentLengthLong(length);
+        }else if(length <= Integer.MAX_VALUE){
+            response.setContentLength((int)length);
+        }
+    }
+    /**
+     * send a file with a content-coding: its .gz sibling, a compressed
+     * copy of a small file, or a large file compressed by the response.
+     */
+    private void serveCompressed(String path,FileCache.Entry entry,HttpServletResponseImpl response,
+            String coding,boolean content) throws IOException{
+        response.setContentType(entry.contentType);
+        response.setDateHeader("Last-Modified",entry.lastModified);
+        response.setHeader("Vary","Accept-Encoding");
+        byte[] body = null;
+        FileCache.Entry gz = null;
+        if(coding.equals(Compression.GZIP)){
+            gz = cache.get(path + ".gz");
+            if(gz != null && gz.lastModified < entry.lastModified){
+                gz = null;  /* stale */
+            }
+        }
+        if(gz == null && entry.body != null){
+            body = Compression.compress(entry.body,0,entry.body.length,coding,entry.file.toString(),entry.etag);
+        }
+        if(gz == null && body == null){
+            /* compressed by the response as it is sent */
+            response.setHeader("ETag",entry.etag);
+            if(content){
+                try(FileChannel file = FileChannel.open(entry.file,StandardOpenOption.READ)){
+                    response.sendFile(file,0,entry.length);
+                }
+            }
+            return;
+        }
+        response.setHeader("Content-Encoding",coding);
+        response.setHeader("ETag",Compression.variant(entry.etag,coding));
+        if(gz == null){
+            response.setContentLength(body.length);
+            if(content){
+                response.getOutputStream().write(body,0,body.length);
+            }
+            return;
+        }
+        setContentLength(response,gz.length);
+        if(!content){
+            return;
+        }
+        if(gz.body != null){
+            response.getOutputStream().write(gz.body,0,gz.body.length);
+            return;
+        }
+        try(FileChannel file = FileChannel.open(gz.file,StandardOpenOption.READ)){
+            response.sendFile(file,0,gz.length);
+        }
+    }
+    /**
+     * path of the file under the document root, decoded.
+     */
+    private String getPath(HttpServletRequest request){
+        String path = request.getServletPath();
+        if(request.getPathInfo() != null){
+            path += request.getPathInfo();
+        }
+        if(path == null || path.isEmpty()){
+            return "/";
+        }
+        if(path.indexOf('%') >= 0){
+            path = URLDecoder.decode(path.replace("+","%2B"),StandardCharsets.UTF_8);
+        }
+        return path;
+    }
+    static private final long[] UNSATISFIABLE = new long[0];
+    /**
+     * "bytes=first-last", "bytes=first-" or "bytes=-suffix".
+     *
+     * @return {first,last}, null to send the whole file (invalid or
+     *  several ranges), or UNSATISFIABLE
+     */
+    static long[] parseRange(String range,long length){
+        range = range.trim();
+        if(!range.startsWith("bytes=") || range.indexOf(',') >= 0){
+            return null;
+        }
+        if(length == 0){
+            return UNSATISFIABLE;
+        }
+        int dash = range.indexOf('-',6);
+        if(dash < 0){
+            return null;
+        }
+        String first = range.substring(6,dash).trim();
+        String last  = range.substring(dash + 1).trim();
+        try{
+            if(first.isEmpty()){
+                long suffix = Long.parseLong(last);
+                if(suffix <= 0){
+                    return UNSATISFIABLE;
+                }
+                return new long[]{Math.max(length - suffix,0),length - 1};
+            }
+            long from = Long.parseLong(first);
+            long to = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last),length - 1);
+            if(from >= length){
+                return UNSATISFIABLE;
+            }
+            if(to < from){
+                return null;
+            }
+            return new long[]{from,to};
+        }catch(NumberFormatException e){
+            return null;
+        }
+    }
+}